@@ -0,0 +1,299 @@
+package io.kyzu.cli;
+
+import java.awt.Rectangle;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.kyzu.core.ChamferMatcher;
+import io.kyzu.core.ImageFinderResult;
+import io.kyzu.core.MatchingImageFinder;
+import io.kyzu.models.MatchingMethod;
+import io.kyzu.models.constants.PnPContants;
+import io.kyzu.utils.CommandLine;
+import nu.pattern.OpenCV;
+
+/**
+ * Command-line entry point that matches every screenshot of a directory
+ * against a library of template images. Screenshots are read lazily from the
+ * directory and matched in parallel, with at most one decoded screenshot per
+ * worker at any time. One JSON line is written per screenshot and template pair as
+ * soon as it is available.
+ *
+ * <pre>
+ * java -cp opencv-pnp.jar io.kyzu.cli.BatchImageFinder \
+ *     --screenshots runs/screens --templates templates \
+ *     [--output results.jsonl] [--threshold 0.9] [--threads 8] [--method MM_SQDIFF_NORMED]
+ * </pre>
+ */
+public class BatchImageFinder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String USAGE = "Usage: BatchImageFinder --screenshots <dir> --templates <dir> "
+                                        + "[--output <file>] [--threshold <0..1>] [--threads <n>] [--method <MatchingMethod>]";
+
+    static {
+        OpenCV.loadShared();
+        System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME);
+    }
+
+    private final Map<String, Mat> templates;
+    private final MatchingImageFinder finder;
+    private final ChamferMatcher chamferMatcher;
+    private final Map<String, ChamferMatcher.EdgeTemplate> edgeTemplates = new HashMap<>();
+    private final double threshold;
+    private final Writer out;
+    private final AtomicLong screenshotCount = new AtomicLong();
+
+    public BatchImageFinder(Map<String, Mat> templates, MatchingMethod matchingMethod, double threshold, Writer out) {
+        this.templates = templates;
+        this.finder = new MatchingImageFinder(matchingMethod);
+        // edge matching prepares every template once and every screenshot once for all templates
+        this.chamferMatcher = matchingMethod == MatchingMethod.MM_EDGE_CHAMFER ? new ChamferMatcher() : null;
+        if (chamferMatcher != null) {
+            for (Map.Entry<String, Mat> template : templates.entrySet()) {
+                edgeTemplates.put(template.getKey(), chamferMatcher.prepareTemplate(template.getValue()));
+            }
+        }
+        this.threshold = threshold;
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = CommandLine.parseOptions(args, USAGE);
+        if (!options.containsKey("screenshots") || !options.containsKey("templates")) {
+            CommandLine.exitWithUsage(USAGE);
+        }
+
+        Path screenshotDir = Paths.get(options.get("screenshots"));
+        Path templateDir = Paths.get(options.get("templates"));
+        double threshold = options.containsKey("threshold")
+                           ? Double.parseDouble(options.get("threshold"))
+                           : PnPContants.MATCH_THRESHOLD;
+        int threads = options.containsKey("threads")
+                      ? Integer.parseInt(options.get("threads"))
+                      : Runtime.getRuntime().availableProcessors();
+        MatchingMethod method = options.containsKey("method")
+                                ? MatchingMethod.valueOf(options.get("method"))
+                                : MatchingMethod.MM_SQDIFF_NORMED;
+
+        Writer out = options.containsKey("output")
+                     ? Files.newBufferedWriter(Paths.get(options.get("output")), StandardCharsets.UTF_8)
+                     : new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+
+        try {
+            BatchImageFinder batch = new BatchImageFinder(loadTemplates(templateDir), method, threshold, out);
+            long count = batch.run(screenshotDir, threads);
+            LOGGER.info("Matched " + count + " screenshots against " + batch.templates.size() + " templates");
+        } finally {
+            out.flush();
+            if (options.containsKey("output")) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Decodes every image of the template directory once. The file name is
+     * used as the template identifier in the results.
+     */
+    public static Map<String, Mat> loadTemplates(Path templateDir) throws IOException {
+        Map<String, Mat> templates = new LinkedHashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(templateDir)) {
+            for (Path path : stream) {
+                if (!Files.isRegularFile(path)) {
+                    continue;
+                }
+                Mat template = Imgcodecs.imread(path.toAbsolutePath().toString());
+                if (template.empty()) {
+                    LOGGER.warn("Skipping template that could not be decoded: " + path);
+                    continue;
+                }
+                templates.put(path.getFileName().toString(), template);
+            }
+        }
+
+        if (templates.isEmpty()) {
+            throw new IllegalArgumentException("No template image could be decoded from: " + templateDir);
+        }
+        return templates;
+    }
+
+    /**
+     * Streams the screenshot directory through a fixed pool of workers. The
+     * work queue is bounded and the directory reader runs overflowing tasks
+     * itself, so the number of decoded screenshots never exceeds the number
+     * of threads plus one.
+     *
+     * @return The number of screenshots processed.
+     */
+    public long run(Path screenshotDir, int threads) throws IOException, InterruptedException {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(screenshotDir)) {
+            for (Path path : stream) {
+                if (Files.isRegularFile(path)) {
+                    executor.execute(() -> processScreenshot(path.toFile()));
+                }
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        return screenshotCount.get();
+    }
+
+    private void processScreenshot(File screenshot) {
+        long decodeStart = System.nanoTime();
+        Mat source = Imgcodecs.imread(screenshot.getAbsolutePath());
+        double decodeMs = elapsedMs(decodeStart);
+        double prepareMs = 0;
+        ChamferMatcher.EdgeFrame edgeFrame = null;
+
+        try {
+            if (source.empty()) {
+                writeLines(Collections.singleton(errorLine(screenshot, null, "Screenshot could not be decoded", decodeMs, 0, 0)));
+                return;
+            }
+            if (chamferMatcher != null) {
+                long prepareStart = System.nanoTime();
+                edgeFrame = chamferMatcher.prepareFrame(source);
+                prepareMs = elapsedMs(prepareStart);
+            }
+
+            List<String> lines = new ArrayList<>(templates.size());
+            for (Map.Entry<String, Mat> template : templates.entrySet()) {
+                long matchStart = System.nanoTime();
+                try {
+                    ImageFinderResult result = edgeFrame != null
+                                               ? chamferMatcher.match(edgeFrame, edgeTemplates.get(template.getKey()), 0)
+                                               : finder.findMatchingImage(source, template.getValue(), 0);
+                    lines.add(resultLine(screenshot, template.getKey(), result, decodeMs, prepareMs, elapsedMs(matchStart)));
+                } catch (RuntimeException ex) {
+                    lines.add(errorLine(screenshot, template.getKey(), String.valueOf(ex.getMessage()), decodeMs, prepareMs, elapsedMs(matchStart)));
+                }
+            }
+            writeLines(lines);
+        } finally {
+            if (edgeFrame != null) {
+                edgeFrame.close();
+            }
+            source.release();
+            screenshotCount.incrementAndGet();
+        }
+    }
+
+    private String resultLine(File screenshot, String template, ImageFinderResult result, double decodeMs,
+                              double prepareMs, double matchMs) {
+        Rectangle location = result.getImageLocation();
+        return String.format(Locale.ROOT,
+                "{\"screenshot\":%s,\"template\":%s,\"found\":%s,\"score\":%.4f,"
+                + "\"location\":{\"x\":%d,\"y\":%d,\"width\":%d,\"height\":%d},"
+                + "\"timings\":{\"decodeMs\":%.3f,\"prepareMs\":%.3f,\"matchMs\":%.3f}}",
+                quote(screenshot.getPath()),
+                quote(template),
+                result.getThreshold() >= threshold,
+                result.getThreshold(),
+                location.x,
+                location.y,
+                location.width,
+                location.height,
+                decodeMs,
+                prepareMs,
+                matchMs);
+    }
+
+    private String errorLine(File screenshot, String template, String error, double decodeMs, double prepareMs,
+                             double matchMs) {
+        return String.format(Locale.ROOT,
+                "{\"screenshot\":%s,\"template\":%s,\"found\":false,\"error\":%s,"
+                + "\"timings\":{\"decodeMs\":%.3f,\"prepareMs\":%.3f,\"matchMs\":%.3f}}",
+                quote(screenshot.getPath()),
+                template == null ? "null" : quote(template),
+                quote(error),
+                decodeMs,
+                prepareMs,
+                matchMs);
+    }
+
+    private void writeLines(Iterable<String> lines) {
+        synchronized (out) {
+            try {
+                for (String line : lines) {
+                    out.write(line);
+                    out.write('\n');
+                }
+                out.flush();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    private static double elapsedMs(long start) {
+        return (System.nanoTime() - start) / 1_000_000d;
+    }
+
+    private static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,183 @@
+package io.kyzu.core;
+
+import java.awt.Rectangle;
+
+import org.opencv.core.Core;
+import org.opencv.core.Core.MinMaxLocResult;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import io.kyzu.exceptions.ImageNotFoundException;
+import io.kyzu.models.constants.PnPContants;
+
+/**
+ * Matches binary edge maps instead of pixel intensities, which makes it
+ * independent of the colors of the screen, e.g. dark and light themes. The
+ * source frame is turned once into a distance transform of its edges, and
+ * every template is scored by the mean distance from its edge points to the
+ * nearest source edge (chamfer distance). Distances are truncated, so the
+ * accuracy is 1 when every template edge lies on a source edge and 0 when
+ * none lies within the truncation distance. Areas dense with edges, such as
+ * noise or small text, are close to every template edge, so the threshold
+ * should be higher than for the pixel-based methods.
+ */
+public class ChamferMatcher {
+
+    private static final double CANNY_LOW_THRESHOLD = 50;
+    private static final double CANNY_HIGH_THRESHOLD = 150;
+
+    private final double maxDistance;
+
+    public ChamferMatcher() {
+        this(PnPContants.CHAMFER_MAX_DISTANCE);
+    }
+
+    /**
+     * @param maxDistance The distance in pixels at which the distance to the
+     * nearest edge is truncated.
+     */
+    public ChamferMatcher(double maxDistance) {
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * Computes the truncated distance transform of the edges of a source
+     * frame. The result can be matched against any number of templates.
+     */
+    public EdgeFrame prepareFrame(Mat source) {
+        Mat edges = edges(source);
+
+        // distanceTransform measures the distance to the nearest zero pixel, so the edges must be zero
+        Core.bitwise_not(edges, edges);
+        Mat distance = new Mat();
+        Imgproc.distanceTransform(edges, distance, Imgproc.DIST_L2, Imgproc.DIST_MASK_PRECISE);
+        Imgproc.threshold(distance, distance, maxDistance, maxDistance, Imgproc.THRESH_TRUNC);
+        edges.release();
+
+        return new EdgeFrame(distance);
+    }
+
+    /**
+     * Extracts the edge points of a template as a 0/1 float mask. The result
+     * can be matched against any number of frames.
+     */
+    public EdgeTemplate prepareTemplate(Mat template) {
+        Mat edges = edges(template);
+        int edgePoints = Core.countNonZero(edges);
+
+        Mat mask = new Mat();
+        edges.convertTo(mask, CvType.CV_32F, 1d / 255);
+        edges.release();
+
+        return new EdgeTemplate(mask, edgePoints);
+    }
+
+    /**
+     * Finds a template in a source image by chamfer matching. Throws an
+     * exception when the image wasn't found or the desired accuracy couldn't
+     * be met.
+     */
+    public ImageFinderResult match(Mat source, Mat template, double threshold) {
+        try (EdgeFrame frame = prepareFrame(source);
+             EdgeTemplate edgeTemplate = prepareTemplate(template)) {
+            return match(frame, edgeTemplate, threshold);
+        }
+    }
+
+    /**
+     * Finds a prepared template in a prepared frame. Throws an exception when
+     * the image wasn't found or the desired accuracy couldn't be met.
+     *
+     * @param frame The source frame edge distances.
+     * @param template The template edge points.
+     * @param threshold The desired accuracy of the find operation as a
+     * number between 0 and 1.
+     * @return An ImageFinderResult object that stores the rectangle of the
+     * found image and its accuracy.
+     */
+    public ImageFinderResult match(EdgeFrame frame, EdgeTemplate template, double threshold) {
+        if (frame.distance.width() < template.mask.width() || frame.distance.height() < template.mask.height()) {
+            throw new UnsupportedOperationException("The template image is larger than the source image. Ensure that the width and/or height of the image you are trying to find do not exceed the dimensions of the source image.");
+        }
+        if (template.edgePoints == 0) {
+            throw new ImageNotFoundException("The template image has no edges to match");
+        }
+
+        // correlating the distances with the edge mask sums the distance under every template edge point
+        Mat result = new Mat();
+        Imgproc.matchTemplate(frame.distance, template.mask, result, Imgproc.TM_CCORR);
+        MinMaxLocResult minMaxLocRes = Core.minMaxLoc(result);
+        result.release();
+
+        double meanDistance = minMaxLocRes.minVal / template.edgePoints;
+        double accuracy = Math.max(0, Math.min(1, 1 - meanDistance / maxDistance));
+        Rectangle foundRect = new Rectangle(
+                (int) minMaxLocRes.minLoc.x,
+                (int) minMaxLocRes.minLoc.y,
+                template.mask.width(),
+                template.mask.height());
+
+        if (accuracy < threshold) {
+            throw new ImageNotFoundException(
+                    String.format(
+                            "Failed to find template image edges in the source image. The accuracy was %.2f and the desired accuracy was %.2f",
+                            accuracy,
+                            threshold),
+                    foundRect,
+                    accuracy);
+        }
+        return new ImageFinderResult(foundRect, accuracy);
+    }
+
+    private static Mat edges(Mat image) {
+        Mat gray = new Mat();
+        if (image.channels() == 1) {
+            image.copyTo(gray);
+        } else {
+            Imgproc.cvtColor(image, gray, image.channels() == 4 ? Imgproc.COLOR_BGRA2GRAY : Imgproc.COLOR_BGR2GRAY);
+        }
+        Mat edges = new Mat();
+        Imgproc.Canny(gray, edges, CANNY_LOW_THRESHOLD, CANNY_HIGH_THRESHOLD);
+        gray.release();
+        return edges;
+    }
+
+    /**
+     * Truncated distance transform of the edges of a source frame.
+     */
+    public static class EdgeFrame implements AutoCloseable {
+        private final Mat distance;
+
+        EdgeFrame(Mat distance) {
+            this.distance = distance;
+        }
+
+        @Override
+        public void close() {
+            distance.release();
+        }
+    }
+
+    /**
+     * Edge points of a template.
+     */
+    public static class EdgeTemplate implements AutoCloseable {
+        private final Mat mask;
+        private final int edgePoints;
+
+        EdgeTemplate(Mat mask, int edgePoints) {
+            this.mask = mask;
+            this.edgePoints = edgePoints;
+        }
+
+        public int getEdgePoints() {
+            return edgePoints;
+        }
+
+        @Override
+        public void close() {
+            mask.release();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package io.kyzu.core;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.lang.invoke.MethodHandles;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.opencv.core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.kyzu.exceptions.ImageNotFoundException;
+import io.kyzu.interfaces.IHybridImageFinder;
+import io.kyzu.models.MatchingFeature2d;
+import io.kyzu.models.MatchingMethod;
+import io.kyzu.models.MatchingStrategy;
+import io.kyzu.models.constants.PnPContants;
+import io.kyzu.utils.Converter;
+import io.kyzu.utils.Fingerprint;
+
+/**
+ * Finds a template with cheap template matching first and escalates to
+ * keypoint matching only when the template matching accuracy is too low.
+ * The outcome and duration of every attempt are recorded per template, so
+ * later lookups of a template start with the strategy that works best for
+ * it.
+ */
+public class HybridImageFinder implements IHybridImageFinder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    /**
+     * Number of attempts of a strategy before its statistics are trusted.
+     */
+    private static final int MIN_ATTEMPTS = 3;
+
+    /**
+     * Success rate above which a strategy is considered reliable, so the
+     * fastest reliable strategy is preferred.
+     */
+    private static final double RELIABLE_SUCCESS_RATE = 0.8;
+
+    /**
+     * Every n-th lookup of a template starts with template matching again, so
+     * its statistics stay current when keypoint matching is preferred.
+     */
+    private static final int REPROBE_INTERVAL = 20;
+
+    private final MatchingImageFinder matchingFinder;
+    private final KeypointImageFinder keypointFinder;
+    private final MatchingFeature2d detector;
+    private final double keypointConfidence;
+    private final int keypointMinInliers;
+    private final ConcurrentMap<Long, StrategyStats> templateStats = new ConcurrentHashMap<>();
+
+    public HybridImageFinder() {
+        this(new MatchingImageFinder(MatchingMethod.MM_SQDIFF_NORMED), MatchingFeature2d.SIFT, PnPContants.KEYPOINT_CONFIDENCE);
+    }
+
+    /**
+     * @param matchingFinder The finder used for template matching.
+     * @param detector The keypoint detector used when escalating.
+     * @param keypointConfidence The minimal ratio of RANSAC inliers among the
+     * good keypoint matches for a keypoint result to be accepted.
+     */
+    public HybridImageFinder(MatchingImageFinder matchingFinder, MatchingFeature2d detector, double keypointConfidence) {
+        this(matchingFinder, detector, keypointConfidence, PnPContants.KEYPOINT_MIN_INLIERS);
+    }
+
+    /**
+     * @param matchingFinder The finder used for template matching.
+     * @param detector The keypoint detector used when escalating.
+     * @param keypointConfidence The minimal ratio of RANSAC inliers among the
+     * good keypoint matches for a keypoint result to be accepted.
+     * @param keypointMinInliers The minimal number of RANSAC inliers for a
+     * keypoint result to be accepted. A homography fits any four points, so a
+     * high inlier ratio alone doesn't prove a match.
+     */
+    public HybridImageFinder(MatchingImageFinder matchingFinder, MatchingFeature2d detector, double keypointConfidence,
+                             int keypointMinInliers) {
+        this.matchingFinder = matchingFinder;
+        this.keypointFinder = new KeypointImageFinder();
+        this.detector = detector;
+        this.keypointConfidence = keypointConfidence;
+        this.keypointMinInliers = keypointMinInliers;
+    }
+
+    /**
+     * Finds a template image in a source image, trying the strategy that
+     * worked best for this template first and the other one when it fails.
+     * Throws an exception when neither strategy found the image.
+     *
+     * @param source The source image.
+     * @param template The template image to find in the source image.
+     * @param threshold The desired accuracy of the template matching as a
+     * number between 0 and 1.
+     * @return An ImageFinderResult object that stores the rectangle of the
+     * found image and its accuracy.
+     */
+    @Override
+    public ImageFinderResult findImage(Mat source, Mat template, double threshold) {
+        StrategyStats stats = templateStats.computeIfAbsent(Fingerprint.of(template), fingerprint -> new StrategyStats());
+        MatchingStrategy first = stats.nextStrategy();
+        MatchingStrategy second = first == MatchingStrategy.TEMPLATE_MATCHING
+                                  ? MatchingStrategy.KEYPOINT
+                                  : MatchingStrategy.TEMPLATE_MATCHING;
+
+        ImageFinderResult result = attempt(first, source, template, threshold, stats);
+        if (result == null) {
+            LOGGER.info("Escalating from " + first + " to " + second);
+            result = attempt(second, source, template, threshold, stats);
+        }
+
+        if (result == null) {
+            throw new ImageNotFoundException(String.format(
+                    "Failed to find the template image by template matching with an accuracy of %.2f or by %s keypoints with a confidence of %.2f and %d inliers",
+                    threshold,
+                    detector,
+                    keypointConfidence,
+                    keypointMinInliers));
+        }
+        return result;
+    }
+
+    /**
+     * Finds a template image in a source image. Throws an exception when
+     * neither strategy found the image.
+     *
+     * @param sourceImage The source image.
+     * @param templateImage The template image to find in the source image.
+     * @param threshold The desired accuracy of the template matching as a
+     * number between 0 and 1.
+     * @param sourceRect The rectangle in the source image to look into. If
+     * null, the find operation will look into the whole source image.
+     * @return An ImageFinderResult object that stores the rectangle of the
+     * found image and its accuracy.
+     */
+    @Override
+    public ImageFinderResult findImage(BufferedImage sourceImage, BufferedImage templateImage, double threshold,
+                                       Rectangle sourceRect) {
+        BufferedImage subImage = sourceImage;
+        if (sourceRect != null) {
+            subImage = sourceImage.getSubimage(
+                    sourceRect.x,
+                    sourceRect.y,
+                    sourceRect.width,
+                    sourceRect.height);
+        }
+
+        Mat sourceMat = Converter.convertToMat(subImage);
+        Mat templateMat = Converter.convertToMat(templateImage);
+        try {
+            return findImage(sourceMat, templateMat, threshold);
+        } finally {
+            sourceMat.release();
+            templateMat.release();
+        }
+    }
+
+    /**
+     * Returns the statistics recorded for a template, or null when the
+     * template was never looked up.
+     */
+    public StrategyStats getStats(Mat template) {
+        return templateStats.get(Fingerprint.of(template));
+    }
+
+    /**
+     * Runs one strategy and records its outcome. Returns null when the
+     * strategy did not find the image.
+     */
+    private ImageFinderResult attempt(MatchingStrategy strategy, Mat source, Mat template, double threshold,
+                                      StrategyStats stats) {
+        long start = System.nanoTime();
+        ImageFinderResult result = null;
+        try {
+            if (strategy == MatchingStrategy.TEMPLATE_MATCHING) {
+                result = matchingFinder.findMatchingImage(source, template, threshold);
+            } else {
+                ImageFinderResult keypointResult = keypointFinder.findImageByKeypoint(source, template, detector);
+                if (keypointResult.getThreshold() >= keypointConfidence
+                    && keypointResult.getInlierCount() >= keypointMinInliers) {
+                    result = keypointResult;
+                }
+            }
+        } catch (ImageNotFoundException | UnsupportedOperationException ex) {
+            LOGGER.debug(strategy + " did not find the template image: " + ex.getMessage());
+        }
+
+        stats.record(strategy, result != null, System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Per-template outcome and timing of each strategy.
+     */
+    public static class StrategyStats {
+        private final Map<MatchingStrategy, long[]> counters = new EnumMap<>(MatchingStrategy.class);
+        private final Map<MatchingStrategy, Double> meanNanos = new EnumMap<>(MatchingStrategy.class);
+        private long lookups;
+
+        StrategyStats() {
+            for (MatchingStrategy strategy : MatchingStrategy.values()) {
+                counters.put(strategy, new long[2]);
+                meanNanos.put(strategy, 0d);
+            }
+        }
+
+        synchronized void record(MatchingStrategy strategy, boolean success, long nanos) {
+            long[] counter = counters.get(strategy);
+            counter[0]++;
+            if (success) {
+                counter[1]++;
+            }
+            // exponentially weighted, so the mean follows changes of the screen
+            double mean = meanNanos.get(strategy);
+            meanNanos.put(strategy, counter[0] == 1 ? nanos : mean + 0.2 * (nanos - mean));
+        }
+
+        /**
+         * Picks the strategy to try first: the fastest one when both are
+         * reliable, otherwise the one with the best success rate. Template
+         * matching is preferred until there is enough data, and is probed
+         * again periodically.
+         */
+        synchronized MatchingStrategy nextStrategy() {
+            lookups++;
+            if (lookups % REPROBE_INTERVAL == 0
+                || getAttempts(MatchingStrategy.TEMPLATE_MATCHING) < MIN_ATTEMPTS
+                || getAttempts(MatchingStrategy.KEYPOINT) < MIN_ATTEMPTS) {
+                return MatchingStrategy.TEMPLATE_MATCHING;
+            }
+
+            double templateRate = getSuccessRate(MatchingStrategy.TEMPLATE_MATCHING);
+            double keypointRate = getSuccessRate(MatchingStrategy.KEYPOINT);
+            if (templateRate >= RELIABLE_SUCCESS_RATE && keypointRate >= RELIABLE_SUCCESS_RATE) {
+                return getMeanMillis(MatchingStrategy.KEYPOINT) < getMeanMillis(MatchingStrategy.TEMPLATE_MATCHING)
+                       ? MatchingStrategy.KEYPOINT
+                       : MatchingStrategy.TEMPLATE_MATCHING;
+            }
+            return keypointRate > templateRate ? MatchingStrategy.KEYPOINT : MatchingStrategy.TEMPLATE_MATCHING;
+        }
+
+        public synchronized long getAttempts(MatchingStrategy strategy) {
+            return counters.get(strategy)[0];
+        }
+
+        public synchronized long getSuccesses(MatchingStrategy strategy) {
+            return counters.get(strategy)[1];
+        }
+
+        public synchronized double getSuccessRate(MatchingStrategy strategy) {
+            long[] counter = counters.get(strategy);
+            return counter[0] == 0 ? 0 : (double) counter[1] / counter[0];
+        }
+
+        public synchronized double getMeanMillis(MatchingStrategy strategy) {
+            return meanNanos.get(strategy) / 1_000_000d;
+        }
+    }
+}
@@ -6,12 +6,21 @@ public class ImageFinderResult {
 
     private double threshold;
     private Rectangle imageLocation;
+    private int inlierCount;
+    private int matchCount;
 
     public ImageFinderResult(Rectangle imageLocation, double threshold) {
         this.imageLocation = imageLocation;
         this.threshold = threshold;
     }
 
+    public ImageFinderResult(Rectangle imageLocation, double threshold, int inlierCount, int matchCount) {
+        this.imageLocation = imageLocation;
+        this.threshold = threshold;
+        this.inlierCount = inlierCount;
+        this.matchCount = matchCount;
+    }
+
     public double getThreshold() {
         return threshold;
     }
@@ -19,4 +28,20 @@ public class ImageFinderResult {
     public Rectangle getImageLocation() {
         return imageLocation;
     }
+
+    /**
+     * Number of keypoint matches kept by RANSAC when the result comes from
+     * keypoint matching, 0 otherwise.
+     */
+    public int getInlierCount() {
+        return inlierCount;
+    }
+
+    /**
+     * Number of keypoint matches that passed the ratio test when the result
+     * comes from keypoint matching, 0 otherwise.
+     */
+    public int getMatchCount() {
+        return matchCount;
+    }
 }
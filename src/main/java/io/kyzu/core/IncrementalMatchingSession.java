@@ -0,0 +1,304 @@
+package io.kyzu.core;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.Core.MinMaxLocResult;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.imgproc.Imgproc;
+
+import io.kyzu.exceptions.ImageNotFoundException;
+import io.kyzu.models.MatchingMethod;
+
+/**
+ * Matches one template against consecutive frames of the same screen. The
+ * session keeps the previous frame and its match score map, diffs every new
+ * frame against the previous one tile by tile, and runs the template matching
+ * only for the part of the score map that the changed tiles can affect. When
+ * nothing changed near the previous best location, that result is reused.
+ * A session is not thread-safe.
+ */
+public class IncrementalMatchingSession implements AutoCloseable {
+
+    public static final int DEFAULT_TILE_SIZE = 64;
+
+    private final MatchingMethod matchingMethod;
+    private final Mat template;
+    private final int tileSize;
+
+    private Mat previousFrame;
+    private Mat scoreMap;
+    private final Mat diff = new Mat();
+
+    private double bestAccuracy;
+    private Point bestLocation;
+    private int lastDirtyTiles;
+    private int lastTileCount;
+
+    public IncrementalMatchingSession(MatchingMethod matchingMethod, Mat template) {
+        this(matchingMethod, template, DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * @param matchingMethod The template matching method.
+     * @param template The template image to track. It is copied, so the
+     * caller may release it.
+     * @param tileSize The side in pixels of the tiles frames are compared by.
+     */
+    public IncrementalMatchingSession(MatchingMethod matchingMethod, Mat template, int tileSize) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("The tile size must be positive");
+        }
+        if (matchingMethod == MatchingMethod.MM_EDGE_CHAMFER) {
+            throw new UnsupportedOperationException("Incremental sessions only support pixel-based matching methods");
+        }
+        this.matchingMethod = matchingMethod;
+        this.template = template.clone();
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Finds the template in the next frame. Throws an exception when the
+     * image wasn't found or the desired accuracy couldn't be met.
+     *
+     * @param frame The next frame of the screen.
+     * @param threshold The desired accuracy of the find operation as a
+     * number between 0 and 1.
+     * @return An ImageFinderResult object that stores the rectangle of the
+     * found image and its accuracy.
+     */
+    public ImageFinderResult findMatchingImage(Mat frame, double threshold) {
+        if (frame.width() < template.width() || frame.height() < template.height()) {
+            throw new UnsupportedOperationException("The template image is larger than the source image. Ensure that the width and/or height of the image you are trying to find do not exceed the dimensions of the source image.");
+        }
+
+        if (previousFrame == null
+            || previousFrame.width() != frame.width()
+            || previousFrame.height() != frame.height()
+            || previousFrame.type() != frame.type()) {
+            rescan(frame);
+        } else {
+            update(frame);
+        }
+
+        if (bestAccuracy < threshold) {
+            throw new ImageNotFoundException(
+                    String.format(
+                            "Failed to find template image in the source image. The accuracy was %.2f and the desired accuracy was %.2f",
+                            bestAccuracy,
+                            threshold),
+                    foundRect(),
+                    bestAccuracy);
+        }
+        return new ImageFinderResult(foundRect(), bestAccuracy);
+    }
+
+    /**
+     * Number of tiles that changed between the last two frames.
+     */
+    public int getLastDirtyTiles() {
+        return lastDirtyTiles;
+    }
+
+    /**
+     * Number of tiles of the last frame.
+     */
+    public int getLastTileCount() {
+        return lastTileCount;
+    }
+
+    @Override
+    public void close() {
+        releaseFrame();
+        template.release();
+        diff.release();
+    }
+
+    private void releaseFrame() {
+        if (previousFrame != null) {
+            previousFrame.release();
+            scoreMap.release();
+            previousFrame = null;
+            scoreMap = null;
+        }
+    }
+
+    /**
+     * Matches the whole frame, used for the first frame and whenever the
+     * frame size changes.
+     */
+    private void rescan(Mat frame) {
+        releaseFrame();
+        previousFrame = frame.clone();
+        scoreMap = new Mat();
+        Imgproc.matchTemplate(frame, template, scoreMap, matchingMethod.getTemplateMat());
+        selectBest(Core.minMaxLoc(scoreMap), 0, 0);
+
+        int tiles = tileCount(frame.width()) * tileCount(frame.height());
+        lastDirtyTiles = tiles;
+        lastTileCount = tiles;
+    }
+
+    private void update(Mat frame) {
+        int width = frame.width(), height = frame.height(), channels = frame.channels();
+        int tilesX = tileCount(width), tilesY = tileCount(height);
+
+        // one column per channel, so a change in any channel counts
+        Core.absdiff(frame, previousFrame, diff);
+        Mat diffValues = diff.reshape(1);
+
+        boolean[] dirty = new boolean[tilesX * tilesY];
+        int dirtyTiles = 0;
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                Mat tile = diffValues.submat(
+                        ty * tileSize,
+                        Math.min(height, (ty + 1) * tileSize),
+                        tx * tileSize * channels,
+                        Math.min(width, (tx + 1) * tileSize) * channels);
+                if (Core.countNonZero(tile) > 0) {
+                    dirty[ty * tilesX + tx] = true;
+                    dirtyTiles++;
+                }
+                tile.release();
+            }
+        }
+        diffValues.release();
+
+        lastDirtyTiles = dirtyTiles;
+        lastTileCount = tilesX * tilesY;
+        if (dirtyTiles == 0) {
+            return;
+        }
+
+        Rectangle best = new Rectangle((int) bestLocation.x, (int) bestLocation.y, 1, 1);
+        boolean bestInvalidated = false;
+        List<MinMaxLocResult> regionResults = new ArrayList<>();
+        List<Point> regionOffsets = new ArrayList<>();
+
+        for (Rectangle changed : mergeDirtyTiles(dirty, tilesX, tilesY, width, height)) {
+            Rectangle region = affectedScoreRegion(changed);
+            if (region.isEmpty()) {
+                continue;
+            }
+
+            Mat sourceRegion = frame.submat(region.y, region.y + region.height + template.height() - 1,
+                    region.x, region.x + region.width + template.width() - 1);
+            Mat scores = scoreMap.submat(region.y, region.y + region.height, region.x, region.x + region.width);
+            Mat partial = new Mat();
+            Imgproc.matchTemplate(sourceRegion, template, partial, matchingMethod.getTemplateMat());
+            partial.copyTo(scores);
+
+            regionResults.add(Core.minMaxLoc(partial));
+            regionOffsets.add(new Point(region.x, region.y));
+            bestInvalidated |= region.intersects(best);
+
+            partial.release();
+            scores.release();
+            sourceRegion.release();
+        }
+        frame.copyTo(previousFrame);
+
+        if (bestInvalidated) {
+            selectBest(Core.minMaxLoc(scoreMap), 0, 0);
+            return;
+        }
+        for (int i = 0; i < regionResults.size(); i++) {
+            double previousAccuracy = bestAccuracy;
+            Point previousLocation = bestLocation;
+            selectBest(regionResults.get(i), regionOffsets.get(i).x, regionOffsets.get(i).y);
+            if (bestAccuracy <= previousAccuracy) {
+                bestAccuracy = previousAccuracy;
+                bestLocation = previousLocation;
+            }
+        }
+    }
+
+    /**
+     * Merges the dirty tiles into rectangles of frame pixels: runs of dirty
+     * tiles within a row, extended downwards while the row below has the
+     * same run.
+     */
+    private List<Rectangle> mergeDirtyTiles(boolean[] dirty, int tilesX, int tilesY, int width, int height) {
+        List<Rectangle> merged = new ArrayList<>();
+        List<Rectangle> open = new ArrayList<>();
+        for (int ty = 0; ty < tilesY; ty++) {
+            List<Rectangle> runs = new ArrayList<>();
+            for (int tx = 0; tx < tilesX; tx++) {
+                if (!dirty[ty * tilesX + tx]) {
+                    continue;
+                }
+                int start = tx;
+                while (tx + 1 < tilesX && dirty[ty * tilesX + tx + 1]) {
+                    tx++;
+                }
+                runs.add(new Rectangle(start, ty, tx - start + 1, 1));
+            }
+
+            List<Rectangle> stillOpen = new ArrayList<>();
+            for (Rectangle run : runs) {
+                Rectangle extended = null;
+                for (Rectangle candidate : open) {
+                    if (candidate.x == run.x && candidate.width == run.width) {
+                        extended = candidate;
+                        break;
+                    }
+                }
+                if (extended != null) {
+                    open.remove(extended);
+                    extended.height++;
+                    stillOpen.add(extended);
+                } else {
+                    stillOpen.add(run);
+                }
+            }
+            merged.addAll(open);
+            open = stillOpen;
+        }
+        merged.addAll(open);
+
+        List<Rectangle> pixels = new ArrayList<>(merged.size());
+        for (Rectangle tiles : merged) {
+            int x = tiles.x * tileSize, y = tiles.y * tileSize;
+            pixels.add(new Rectangle(x, y,
+                    Math.min(width, (tiles.x + tiles.width) * tileSize) - x,
+                    Math.min(height, (tiles.y + tiles.height) * tileSize) - y));
+        }
+        return pixels;
+    }
+
+    /**
+     * Returns the score map positions whose template window overlaps the
+     * changed frame pixels.
+     */
+    private Rectangle affectedScoreRegion(Rectangle changed) {
+        int x0 = Math.max(0, changed.x - template.width() + 1);
+        int y0 = Math.max(0, changed.y - template.height() + 1);
+        int x1 = Math.min(scoreMap.width(), changed.x + changed.width);
+        int y1 = Math.min(scoreMap.height(), changed.y + changed.height);
+        return new Rectangle(x0, y0, Math.max(0, x1 - x0), Math.max(0, y1 - y0));
+    }
+
+    private void selectBest(MinMaxLocResult minMaxLocRes, double offsetX, double offsetY) {
+        Point location;
+        if (this.matchingMethod.getTemplateMat() == Imgproc.TM_SQDIFF_NORMED) {
+            bestAccuracy = 1 - minMaxLocRes.minVal;
+            location = minMaxLocRes.minLoc;
+        } else {
+            bestAccuracy = minMaxLocRes.maxVal;
+            location = minMaxLocRes.maxLoc;
+        }
+        bestLocation = new Point(location.x + offsetX, location.y + offsetY);
+    }
+
+    private Rectangle foundRect() {
+        return new Rectangle((int) bestLocation.x, (int) bestLocation.y, template.width(), template.height());
+    }
+
+    private int tileCount(int pixels) {
+        return (pixels + tileSize - 1) / tileSize;
+    }
+}
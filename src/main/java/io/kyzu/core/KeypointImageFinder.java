@@ -5,18 +5,14 @@ import static io.kyzu.models.constants.PnPContants.MATCH_THRESHOLD;
 import java.awt.Rectangle;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import org.opencv.calib3d.Calib3d;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
-import org.opencv.core.DMatch;
-import org.opencv.core.KeyPoint;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfDMatch;
 import org.opencv.core.MatOfKeyPoint;
 import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.Point;
 import org.opencv.features2d.BFMatcher;
 import org.opencv.features2d.ORB;
 import org.opencv.features2d.SIFT;
@@ -28,6 +24,10 @@ import nu.pattern.OpenCV;
 
 public class KeypointImageFinder implements IKeypointImageFinder {
 
+    private static final int KEYPOINT_FIELDS = 7;
+    private static final int DMATCH_FIELDS = 4;
+    private static final int MIN_HOMOGRAPHY_POINTS = 4;
+
     static {
         OpenCV.loadShared();
         System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME);
@@ -41,13 +41,12 @@ public class KeypointImageFinder implements IKeypointImageFinder {
      * @param template The template's Mat.
      * @param detector The matching feature 2d enumeration
      * @return An ImageFinderResult object that stores the rectangle of the
-     * found image and desired accuracy.
+     * found image and the ratio of RANSAC inliers among the good matches as
+     * its accuracy.
      */
     @Override
     public ImageFinderResult findImageByKeypoint(Mat source, Mat template, MatchingFeature2d detector) {
-        double threshold = MATCH_THRESHOLD;
-        Rectangle foundRect = getImageBoundaryByDescriptor(source, template, detector, threshold);
-        return new ImageFinderResult(foundRect, threshold);
+        return findImageByDescriptor(source, template, detector, MATCH_THRESHOLD);
     }
 
     /**
@@ -57,15 +56,50 @@ public class KeypointImageFinder implements IKeypointImageFinder {
      * @param source The source's Mat.
      * @param template The template's Mat.
      * @param detector The matching feature 2d enumeration
-     * @param threshold The desired accuracy of the find operation as a
+     * @param threshold The ratio test threshold of the keypoint matches as a
      * number between 0 and 1.
      * @return An ImageFinderResult object that stores the rectangle of the
-     * found image and desired accuracy.
+     * found image and the ratio of RANSAC inliers among the good matches as
+     * its accuracy.
      */
     @Override
     public ImageFinderResult findImageByKeypoint(Mat source, Mat template, MatchingFeature2d detector, double threshold) {
-        Rectangle foundRect = getImageBoundaryByDescriptor(source, template, detector, threshold);
-        return new ImageFinderResult(foundRect, threshold);
+        return findImageByDescriptor(source, template, detector, threshold);
+    }
+
+    /**
+     * Finds a template whose keypoints were prepared once by
+     * prepareTemplate. Throws an exception when the image wasn't found or
+     * the desired accuracy couldn't be met.
+     *
+     * @param source The source's Mat.
+     * @param template The template's keypoints and descriptors.
+     * @param threshold The ratio test threshold of the keypoint matches as a
+     * number between 0 and 1.
+     * @return An ImageFinderResult object that stores the rectangle of the
+     * found image and the ratio of RANSAC inliers among the good matches as
+     * its accuracy.
+     */
+    public ImageFinderResult findImageByKeypoint(Mat source, TemplateFeatures template, double threshold) {
+        return findImageByDescriptor(source, template, threshold);
+    }
+
+    /**
+     * Detects the keypoints of a template and computes their descriptors.
+     * The result can be matched against any number of sources with the same
+     * detector.
+     */
+    public TemplateFeatures prepareTemplate(Mat template, MatchingFeature2d detector) {
+        MatOfKeyPoint keypoints = new MatOfKeyPoint();
+        Mat descriptors = new Mat();
+        try {
+            detectAndCompute(template, detector, keypoints, descriptors);
+        } catch (Exception e) {
+            keypoints.release();
+            descriptors.release();
+            throw new ImageNotFoundException("Don't apply keypoint algorithm to detect image by: " + detector.toString());
+        }
+        return new TemplateFeatures(detector, keypoints, descriptors, template.cols(), template.rows());
     }
 
     /**
@@ -73,105 +107,230 @@ public class KeypointImageFinder implements IKeypointImageFinder {
      */
     public Rectangle getImageBoundaryByDescriptor(Mat source, Mat template, MatchingFeature2d detector,
                                                          double threshold) {
-        Rectangle rect = new Rectangle();
-        MatOfKeyPoint tempMatKp = new MatOfKeyPoint(), srcMatKp = new MatOfKeyPoint();
-        Mat descTemp = new Mat(), descSrc = new Mat();
+        return findImageByDescriptor(source, template, detector, threshold).getImageLocation();
+    }
+
+    private ImageFinderResult findImageByDescriptor(Mat source, Mat template, MatchingFeature2d detector,
+                                                    double threshold) {
+        try (TemplateFeatures features = prepareTemplate(template, detector)) {
+            return findImageByDescriptor(source, features, threshold);
+        }
+    }
+
+    /**
+     * Matches the keypoints of the template against the source, filters the
+     * matches with the ratio test and RANSAC, and projects the template
+     * corners into the source. The filtering reads the keypoints and matches
+     * in bulk into primitive arrays and builds the RANSAC input directly from
+     * them.
+     */
+    private ImageFinderResult findImageByDescriptor(Mat source, TemplateFeatures template, double threshold) {
+        MatchingFeature2d detector = template.detector;
+        MatOfKeyPoint tempMatKp = template.keypoints, srcMatKp = new MatOfKeyPoint();
+        Mat descTemp = template.descriptors, descSrc = new Mat();
         BFMatcher matcher;
         List<MatOfDMatch> knnMatches = new ArrayList<>();
+        boolean ratioTest = true;
+        MatOfPoint2f tempMatOfPoint = new MatOfPoint2f(), srcMatOfPoint = new MatOfPoint2f();
+        Mat outputMask = new Mat();
+        Mat homo = null;
         try {
             switch (detector) {
                 case SIFT:
-                    SIFT sift = SIFT.create();
-                    sift.detectAndCompute(template, new Mat(), tempMatKp, descTemp);
-                    sift.detectAndCompute(source, new Mat(), srcMatKp, descSrc);
+                    detectAndCompute(source, detector, srcMatKp, descSrc);
 
                     matcher = BFMatcher.create();
                     matcher.knnMatch(descTemp, descSrc, knnMatches, 2);
                     break;
 
                 case ORB:
-                    ORB orb = ORB.create();
-                    orb.detectAndCompute(template, new Mat(), tempMatKp, descTemp);
-                    orb.detectAndCompute(source, new Mat(), srcMatKp, descSrc);
+                    detectAndCompute(source, detector, srcMatKp, descSrc);
 
                     matcher = BFMatcher.create(Core.NORM_L2, true);
                     MatOfDMatch matOfDMatch = new MatOfDMatch();
                     matcher.match(descTemp, descSrc, matOfDMatch);
                     knnMatches.add(matOfDMatch);
+                    ratioTest = false;
                     break;
 
                 default:
                     break;
             }
 
-            List<KeyPoint> tempMatchKps = new ArrayList<>(), srcMatchKps = new ArrayList<>();
-            List<KeyPoint> tempKeypoints = tempMatKp.toList(), srcKeypoints = srcMatKp.toList();
+            // keypoint rows are (x, y, size, angle, response, octave, class_id)
+            float[] tempKeypoints = readFloats(tempMatKp), srcKeypoints = readFloats(srcMatKp);
 
-            List<MatOfDMatch> goodMatches = new ArrayList<>();
+            // match rows are (queryIdx, trainIdx, imgIdx, distance)
+            int matchRows = 0;
+            for (MatOfDMatch matches : knnMatches) {
+                matchRows += (int) matches.total();
+            }
 
-            // get keypoint coordinates of good matches to find homography and remove outliers using ransac
-            List<Point> tempPoints = new ArrayList<Point>();
-            List<Point> srcPoints = new ArrayList<Point>();
+            // coordinates of the good matches, interleaved as (x, y) for the RANSAC input
+            float[] tempPoints = new float[matchRows * 2];
+            float[] srcPoints = new float[matchRows * 2];
+            int goodMatches = 0;
+            float[] row = new float[2 * DMATCH_FIELDS];
 
-            for (int i = 0; i < knnMatches.size(); i++) {
-                DMatch[] matches = knnMatches.get(i).toArray();
-                float dist1 = matches[0].distance;
-                float dist2 = matches[1].distance;
-                if (dist1 < ((float) threshold) * dist2) {
-                    goodMatches.add(knnMatches.get(i));     // debug purpose
-                    tempMatchKps.add(tempKeypoints.get(matches[0].queryIdx));
-                    srcMatchKps.add(srcKeypoints.get(matches[0].trainIdx));
+            for (MatOfDMatch matches : knnMatches) {
+                if (!ratioTest) {
+                    // cross-checked matches (ORB) hold one row per query and are all kept
+                    float[] all = readFloats(matches);
+                    for (int offset = 0; offset < all.length; offset += DMATCH_FIELDS) {
+                        goodMatches = addMatch(all, offset, tempKeypoints, srcKeypoints, tempPoints, srcPoints, goodMatches);
+                    }
+                    continue;
                 }
-            }
 
-            /**
-             * Debug keypoint matching image
-             **/
-//            Mat debug = new Mat();
-//            Features2d.drawMatchesKnn(template, tempMatKp, source, srcMatKp, goodMatches, debug);
-//            Imgcodecs.imwrite(detector.toString().toLowerCase() + "_result.png", debug);
+                // k-NN matches hold the two nearest neighbours of one query
+                int k = (int) matches.total();
+                if (k < 2) {
+                    continue;
+                }
+                matches.get(0, 0, row);
+                if (row[3] < ((float) threshold) * row[DMATCH_FIELDS + 3]) {
+                    goodMatches = addMatch(row, 0, tempKeypoints, srcKeypoints, tempPoints, srcPoints, goodMatches);
+                }
+            }
 
-            tempPoints = tempMatchKps.stream().map(kp -> kp.pt).collect(Collectors.toList());
-            srcPoints = srcMatchKps.stream().map(kp -> kp.pt).collect(Collectors.toList());
+            if (goodMatches < MIN_HOMOGRAPHY_POINTS) {
+                throw new ImageNotFoundException(String.format(
+                        "Failed to find template image by %s keypoints. Only %d good matches were found, at least %d are needed",
+                        detector, goodMatches, MIN_HOMOGRAPHY_POINTS));
+            }
 
-            // convertion of data types - there is maybe a more beautiful way
-            Mat outputMask = new Mat();
-            MatOfPoint2f tempMatOfPoint = new MatOfPoint2f();
-            tempMatOfPoint.fromList(tempPoints);
-            MatOfPoint2f srcMatOfPoint = new MatOfPoint2f();
-            srcMatOfPoint.fromList(srcPoints);
+            tempMatOfPoint.create(goodMatches, 1, CvType.CV_32FC2);
+            tempMatOfPoint.put(0, 0, tempPoints);
+            srcMatOfPoint.create(goodMatches, 1, CvType.CV_32FC2);
+            srcMatOfPoint.put(0, 0, srcPoints);
 
             // Find homography - here just used to perform match filtering with RANSAC, but could be used to e.g. stitch images
             // the smaller the allowed reprojection error (here 15), the more matches are filtered
-            Mat homo = Calib3d.findHomography(tempMatOfPoint, srcMatOfPoint, Calib3d.RANSAC, 15, outputMask, 2000, 0.995);
+            homo = Calib3d.findHomography(tempMatOfPoint, srcMatOfPoint, Calib3d.RANSAC, 15, outputMask, 2000, 0.995);
+            if (homo.empty()) {
+                throw new ImageNotFoundException(String.format(
+                        "Failed to find template image by %s keypoints. No homography fits the %d good matches",
+                        detector, goodMatches));
+            }
+
+            // the RANSAC mask flags every inlier with a non-zero byte
+            byte[] inlierMask = new byte[goodMatches];
+            outputMask.get(0, 0, inlierMask);
+            int inliers = 0;
+            for (byte inlier : inlierMask) {
+                if (inlier != 0) {
+                    inliers++;
+                }
+            }
 
             // Collect the object boundary
             Mat obj_corners = new Mat(4, 1, CvType.CV_32FC2);
             Mat scene_corners = new Mat(4, 1, CvType.CV_32FC2);
 
-            obj_corners.put(0, 0, new double[] {0,0});
-            obj_corners.put(1, 0, new double[] {template.cols(),0});
-            obj_corners.put(2, 0, new double[] {template.cols(),template.rows()});
-            obj_corners.put(3, 0, new double[] {0,template.rows()});
+            obj_corners.put(0, 0, new float[] {
+                    0, 0,
+                    template.cols, 0,
+                    template.cols, template.rows,
+                    0, template.rows});
 
             Core.perspectiveTransform(obj_corners, scene_corners, homo);
 
-            // points of object (debug purpose)
-            Point po1 = new Point(obj_corners.get(0, 0));
-            Point po2 = new Point(obj_corners.get(1, 0));
-            Point po3 = new Point(obj_corners.get(2, 0));
-            Point po4 = new Point(obj_corners.get(3, 0));
-
             // point of object in scene
-            Point topLeft = new Point(scene_corners.get(0, 0));
-            Point topRight = new Point(scene_corners.get(1, 0));
-            Point botRight = new Point(scene_corners.get(2, 0));
-            Point botLeft = new Point(scene_corners.get(3, 0));
+            float[] corners = new float[8];
+            scene_corners.get(0, 0, corners);
+            obj_corners.release();
+            scene_corners.release();
+
+            float topLeftX = corners[0], topLeftY = corners[1];
+            float topRightX = corners[2];
+            float botLeftY = corners[7];
 
-            rect = new Rectangle((int) topLeft.x, (int) topLeft.y, (int) (topRight.x - topLeft.x), (int) (botLeft.y - topLeft.y));
+            Rectangle rect = new Rectangle((int) topLeftX, (int) topLeftY, (int) (topRightX - topLeftX), (int) (botLeftY - topLeftY));
+            return new ImageFinderResult(rect, (double) inliers / goodMatches, inliers, goodMatches);
+        } catch (ImageNotFoundException e) {
+            throw e;
         } catch (Exception e) {
             throw new ImageNotFoundException("Don't apply keypoint algorithm to detect image by: " + detector.toString());
+        } finally {
+            srcMatKp.release();
+            descSrc.release();
+            for (MatOfDMatch matches : knnMatches) {
+                matches.release();
+            }
+            tempMatOfPoint.release();
+            srcMatOfPoint.release();
+            outputMask.release();
+            if (homo != null) {
+                homo.release();
+            }
+        }
+    }
+
+    private static void detectAndCompute(Mat image, MatchingFeature2d detector, MatOfKeyPoint keypoints,
+                                         Mat descriptors) {
+        switch (detector) {
+            case SIFT:
+                SIFT.create().detectAndCompute(image, new Mat(), keypoints, descriptors);
+                break;
+
+            case ORB:
+                ORB.create().detectAndCompute(image, new Mat(), keypoints, descriptors);
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Copies the query and train keypoint coordinates of the match at the
+     * given offset into the point arrays, and returns the new match count.
+     */
+    private static int addMatch(float[] match, int offset, float[] tempKeypoints, float[] srcKeypoints,
+                                float[] tempPoints, float[] srcPoints, int count) {
+        int queryIdx = (int) match[offset] * KEYPOINT_FIELDS;
+        int trainIdx = (int) match[offset + 1] * KEYPOINT_FIELDS;
+        tempPoints[2 * count] = tempKeypoints[queryIdx];
+        tempPoints[2 * count + 1] = tempKeypoints[queryIdx + 1];
+        srcPoints[2 * count] = srcKeypoints[trainIdx];
+        srcPoints[2 * count + 1] = srcKeypoints[trainIdx + 1];
+        return count + 1;
+    }
+
+    private static float[] readFloats(Mat mat) {
+        float[] data = new float[(int) (mat.total() * mat.channels())];
+        if (data.length > 0) {
+            mat.get(0, 0, data);
+        }
+        return data;
+    }
+
+    /**
+     * Keypoints and descriptors of a template for one detector.
+     */
+    public static class TemplateFeatures implements AutoCloseable {
+        private final MatchingFeature2d detector;
+        private final MatOfKeyPoint keypoints;
+        private final Mat descriptors;
+        private final int cols;
+        private final int rows;
+
+        TemplateFeatures(MatchingFeature2d detector, MatOfKeyPoint keypoints, Mat descriptors, int cols, int rows) {
+            this.detector = detector;
+            this.keypoints = keypoints;
+            this.descriptors = descriptors;
+            this.cols = cols;
+            this.rows = rows;
+        }
+
+        public MatchingFeature2d getDetector() {
+            return detector;
+        }
+
+        @Override
+        public void close() {
+            keypoints.release();
+            descriptors.release();
         }
-        return rect;
     }
 }
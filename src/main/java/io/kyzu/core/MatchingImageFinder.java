@@ -25,6 +25,7 @@ import io.kyzu.interfaces.IMatchingImageFinder;
 import io.kyzu.models.MatchingMethod;
 import io.kyzu.models.constants.PnPContants;
 import io.kyzu.utils.Converter;
+import io.kyzu.utils.Fingerprint;
 
 import io.appium.java_client.AppiumDriver;
 import nu.pattern.OpenCV;
@@ -39,6 +40,8 @@ public class MatchingImageFinder implements IMatchingImageFinder {
     }
 
     MatchingMethod matchingMethod;
+    MatchingResultCache resultCache;
+    ChamferMatcher chamferMatcher = new ChamferMatcher();
 
     public MatchingImageFinder() {
         this.matchingMethod = MatchingMethod.MM_SQDIFF_NORMED;
@@ -48,6 +51,66 @@ public class MatchingImageFinder implements IMatchingImageFinder {
         this.matchingMethod = matchingMethod;
     }
 
+    /**
+     * Creates a finder that answers repeated queries on an unchanged frame
+     * from the given result cache instead of matching again.
+     *
+     * @param matchingMethod The template matching method.
+     * @param resultCache The cache of previous results, or null to disable
+     * caching.
+     */
+    public MatchingImageFinder(MatchingMethod matchingMethod, MatchingResultCache resultCache) {
+        this.matchingMethod = matchingMethod;
+        this.resultCache = resultCache;
+    }
+
+    public MatchingResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Opens a session that tracks a template across consecutive frames of the
+     * same screen, rematching only the regions that changed between frames.
+     *
+     * @param templateMat The template image to track.
+     * @return An IncrementalMatchingSession using the matching method of this
+     * finder. It must be closed to release its native memory.
+     */
+    public IncrementalMatchingSession openSession(Mat templateMat) {
+        return new IncrementalMatchingSession(this.matchingMethod, templateMat);
+    }
+
+    /**
+     * Looks the query up in the result cache before running the find
+     * operation, and stores the outcome (found or not found) afterwards.
+     */
+    private ImageFinderResult findCachedMatchingImage(Mat sourceMat, Mat templateMat, double threshold,
+                                                      Rectangle sourceRect) {
+        if (resultCache == null) {
+            return matchTemplate(sourceMat, templateMat, threshold);
+        }
+
+        MatchingResultCache.Key key = MatchingResultCache.key(
+                Fingerprint.of(sourceMat),
+                Fingerprint.of(templateMat),
+                this.matchingMethod,
+                threshold,
+                sourceRect);
+        ImageFinderResult cached = resultCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        try {
+            ImageFinderResult result = matchTemplate(sourceMat, templateMat, threshold);
+            resultCache.putResult(key, result);
+            return result;
+        } catch (ImageNotFoundException ex) {
+            resultCache.putFailure(key, ex);
+            throw ex;
+        }
+    }
+
     /**
      * Finds a template image in a source image. Throws an exception when the
      * image wasn't found or the desired accuracy couldn't be met.
@@ -59,7 +122,20 @@ public class MatchingImageFinder implements IMatchingImageFinder {
      * @return An ImageFinderResult object that stores the rectangle of the
      * found image and desired accuracy.
      */
-    private ImageFinderResult findMatchingImage(Mat sourceMat, Mat templateMat, double threshold) {
+    @Override
+    public ImageFinderResult findMatchingImage(Mat sourceMat, Mat templateMat, double threshold) {
+        return findCachedMatchingImage(sourceMat, templateMat, threshold, null);
+    }
+
+    /**
+     * Runs the template matching operation on an already decoded source and
+     * template image.
+     */
+    private ImageFinderResult matchTemplate(Mat sourceMat, Mat templateMat, double threshold) {
+        if (this.matchingMethod == MatchingMethod.MM_EDGE_CHAMFER) {
+            return chamferMatcher.match(sourceMat, templateMat, threshold);
+        }
+
         if (sourceMat.width() < templateMat.width() || sourceMat.height() < templateMat.height()) {
             throw new UnsupportedOperationException("The template image is larger than the source image. Ensure that the width and/or height of the image you are trying to find do not exceed the dimensions of the source image.");
         }
@@ -69,6 +145,7 @@ public class MatchingImageFinder implements IMatchingImageFinder {
 
         Imgproc.matchTemplate(sourceMat, templateMat, result, intMatchingMethod);
         MinMaxLocResult minMaxLocRes = Core.minMaxLoc(result);
+        result.release();
 
         double accuracy = 0;
         Point location = null;
@@ -133,7 +210,7 @@ public class MatchingImageFinder implements IMatchingImageFinder {
 
             Mat sourceMat = Converter.convertToMat(capture);
             Mat templateMat = Converter.convertToMat(templateImage);
-            return findMatchingImage(sourceMat, templateMat, threshold);
+            return findCachedMatchingImage(sourceMat, templateMat, threshold, sourceRect);
         } catch (Exception ex) {
             throw new ImageNotFoundException(PnPContants.ERR_FIND_IMG_STR, sourceRect, threshold);
         }
@@ -161,18 +238,22 @@ public class MatchingImageFinder implements IMatchingImageFinder {
                                                   double threshold, Rectangle sourceRect) {
         ImageFinderResult bestResult = new ImageFinderResult(new Rectangle(100, 100, 100, 100), 0);
 
-        for (BufferedImage templateImage : templateImages) {
-            try {
-                ImageFinderResult result = findMatchingImage(sourceImage, templateImage, 0, sourceRect);
-                LOGGER.info("Image was found at the threshold of: " + result.getThreshold());
-                if (result.getThreshold() > bestResult.getThreshold() && result.getThreshold() >= threshold) {
-                    bestResult = result;
-                    break;
+        try (ChamferMatcher.EdgeFrame edgeFrame = prepareEdgeFrame(sourceImage, sourceRect)) {
+            for (BufferedImage templateImage : templateImages) {
+                try {
+                    ImageFinderResult result = edgeFrame != null
+                                               ? findEdgeMatchingImage(edgeFrame, templateImage)
+                                               : findMatchingImage(sourceImage, templateImage, 0, sourceRect);
+                    LOGGER.info("Image was found at the threshold of: " + result.getThreshold());
+                    if (result.getThreshold() > bestResult.getThreshold() && result.getThreshold() >= threshold) {
+                        bestResult = result;
+                        break;
+                    }
+                } catch (UnsupportedOperationException ex) {
+                    LOGGER.error("The template image is larger than the source image", ex);
+                } catch (Exception ex) {
+                    LOGGER.warn("Failed to perform an image template matching operation", ex);
                 }
-            } catch (UnsupportedOperationException ex) {
-                LOGGER.error("The template image is larger than the source image", ex);
-            } catch (Exception ex) {
-                LOGGER.warn("Failed to perform an image template matching operation", ex);
             }
         }
 
@@ -211,19 +292,23 @@ public class MatchingImageFinder implements IMatchingImageFinder {
         ImageFinderResult bestResult = new ImageFinderResult(new Rectangle(100, 100, 100, 100), 0);
         try {
             BufferedImage srcBuff = ImageIO.read(sourceImage);
-            for (File templateFile : templateImages) {
-                try {
-                    BufferedImage file = ImageIO.read(templateFile);
-                    ImageFinderResult result = findMatchingImage(srcBuff, file, 0, sourceRect);
-                    LOGGER.info("Image was found at the threshold of: " + result.getThreshold());
-                    if (result.getThreshold() > bestResult.getThreshold() && result.getThreshold() >= threshold) {
-                        bestResult = result;
-                        break;
+            try (ChamferMatcher.EdgeFrame edgeFrame = prepareEdgeFrame(srcBuff, sourceRect)) {
+                for (File templateFile : templateImages) {
+                    try {
+                        BufferedImage file = ImageIO.read(templateFile);
+                        ImageFinderResult result = edgeFrame != null
+                                                   ? findEdgeMatchingImage(edgeFrame, file)
+                                                   : findMatchingImage(srcBuff, file, 0, sourceRect);
+                        LOGGER.info("Image was found at the threshold of: " + result.getThreshold());
+                        if (result.getThreshold() > bestResult.getThreshold() && result.getThreshold() >= threshold) {
+                            bestResult = result;
+                            break;
+                        }
+                    } catch (UnsupportedOperationException ex) {
+                        LOGGER.error("The template image is larger than the source image", ex);
+                    } catch (Exception ex) {
+                        LOGGER.warn("Failed to perform an image template matching operation", ex);
                     }
-                } catch (UnsupportedOperationException ex) {
-                    LOGGER.error("The template image is larger than the source image", ex);
-                } catch (Exception ex) {
-                    LOGGER.warn("Failed to perform an image template matching operation", ex);
                 }
             }
         } catch (IOException e) {
@@ -271,7 +356,7 @@ public class MatchingImageFinder implements IMatchingImageFinder {
         Mat sourceMat = Converter.convertToMat(subImage);
         Mat templateMat = Converter.convertToMat(templateImage);
 
-        return findMatchingImage(sourceMat, templateMat, threshold);
+        return findCachedMatchingImage(sourceMat, templateMat, threshold, sourceRect);
     }
 
     /**
@@ -289,7 +374,7 @@ public class MatchingImageFinder implements IMatchingImageFinder {
     public ImageFinderResult findMatchingImage(File sourceImage, File templateImage, double threshold) {
         Mat sourceMat = Imgcodecs.imread(sourceImage.getAbsolutePath());
         Mat templateMat = Imgcodecs.imread(templateImage.getAbsolutePath());
-        return findMatchingImage(sourceMat, templateMat, threshold);
+        return findCachedMatchingImage(sourceMat, templateMat, threshold, null);
     }
 
     /**
@@ -317,12 +402,51 @@ public class MatchingImageFinder implements IMatchingImageFinder {
 
             Mat sourceMat = Converter.convertToMat(capture);
             Mat templateMat = Imgcodecs.imread(templateImage.getAbsolutePath());
-            return findMatchingImage(sourceMat, templateMat, threshold);
+            return findCachedMatchingImage(sourceMat, templateMat, threshold, sourceRect);
         } catch (Exception ex) {
             throw new ImageNotFoundException(PnPContants.ERR_FIND_IMG_STR, sourceRect, threshold);
         }
     }
 
+    /**
+     * Computes the edge distances of the source image once, so that every
+     * template of a find-any operation is matched against them. Returns null
+     * when the matching method does not use edges.
+     */
+    private ChamferMatcher.EdgeFrame prepareEdgeFrame(BufferedImage sourceImage, Rectangle sourceRect) {
+        if (this.matchingMethod != MatchingMethod.MM_EDGE_CHAMFER) {
+            return null;
+        }
+
+        BufferedImage subImage = sourceImage;
+        if (sourceRect != null) {
+            subImage = sourceImage.getSubimage(
+                    sourceRect.x,
+                    sourceRect.y,
+                    sourceRect.width,
+                    sourceRect.height);
+        }
+
+        Mat sourceMat = Converter.convertToMat(subImage);
+        try {
+            return chamferMatcher.prepareFrame(sourceMat);
+        } finally {
+            sourceMat.release();
+        }
+    }
+
+    /**
+     * Finds a template image in prepared source edge distances.
+     */
+    private ImageFinderResult findEdgeMatchingImage(ChamferMatcher.EdgeFrame edgeFrame, BufferedImage templateImage) {
+        Mat templateMat = Converter.convertToMat(templateImage);
+        try (ChamferMatcher.EdgeTemplate edgeTemplate = chamferMatcher.prepareTemplate(templateMat)) {
+            return chamferMatcher.match(edgeFrame, edgeTemplate, 0);
+        } finally {
+            templateMat.release();
+        }
+    }
+
     /**
      * Checks whether an OpenCV MinMaxLocResult object is valid. This object is
      * used for storing the location of the minimum and maximum values for an
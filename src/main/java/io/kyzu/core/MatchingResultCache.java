@@ -0,0 +1,185 @@
+package io.kyzu.core;
+
+import java.awt.Rectangle;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import io.kyzu.exceptions.ImageNotFoundException;
+import io.kyzu.models.MatchingMethod;
+import io.kyzu.models.constants.PnPContants;
+
+/**
+ * Bounded cache of template matching outcomes. Entries are keyed by the
+ * fingerprint of the source frame, the fingerprint of the template, the
+ * matching method, the threshold and the source rectangle, so an identical
+ * query on an unchanged frame is answered without running the match again.
+ * Entries are evicted in least recently used order once the cache is full
+ * and expire after a fixed time to live.
+ */
+public class MatchingResultCache {
+
+    private final int maxEntries;
+    private final long timeToLiveNanos;
+    private final LinkedHashMap<Key, CacheEntry> entries;
+
+    private long hits;
+    private long misses;
+
+    public MatchingResultCache() {
+        this(PnPContants.RESULT_CACHE_MAX_ENTRIES, PnPContants.RESULT_CACHE_TTL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public MatchingResultCache(int maxEntries, long timeToLive, TimeUnit unit) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("The cache must hold at least one entry");
+        }
+        this.maxEntries = maxEntries;
+        this.timeToLiveNanos = unit.toNanos(timeToLive);
+        this.entries = new LinkedHashMap<Key, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CacheEntry> eldest) {
+                return size() > MatchingResultCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns a copy of the cached outcome of a query, or null when the query
+     * is not cached or its entry expired. A cached failure is thrown as a new
+     * ImageNotFoundException with the original message and location.
+     */
+    synchronized ImageFinderResult get(Key key) {
+        CacheEntry entry = entries.get(key);
+        if (entry == null || isExpired(entry, System.nanoTime())) {
+            if (entry != null) {
+                entries.remove(key);
+            }
+            misses++;
+            return null;
+        }
+
+        hits++;
+        if (entry.failure) {
+            throw new ImageNotFoundException(entry.message, copy(entry.location), entry.accuracy);
+        }
+        return new ImageFinderResult(copy(entry.location), entry.accuracy, entry.inlierCount, entry.matchCount);
+    }
+
+    synchronized void putResult(Key key, ImageFinderResult result) {
+        entries.put(key, new CacheEntry(false, null, copy(result.getImageLocation()), result.getThreshold(),
+                result.getInlierCount(), result.getMatchCount(), System.nanoTime()));
+    }
+
+    synchronized void putFailure(Key key, ImageNotFoundException failure) {
+        entries.put(key, new CacheEntry(true, failure.getMessage(), copy(failure.getFoundRect()),
+                failure.getThreshold(), 0, 0, System.nanoTime()));
+    }
+
+    /**
+     * Removes every expired entry.
+     */
+    public synchronized void evictExpired() {
+        long now = System.nanoTime();
+        Iterator<CacheEntry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (isExpired(it.next(), now)) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private static Rectangle copy(Rectangle rect) {
+        return rect == null ? null : new Rectangle(rect);
+    }
+
+    private boolean isExpired(CacheEntry entry, long now) {
+        return now - entry.createdAt > timeToLiveNanos;
+    }
+
+    static Key key(long sourceFingerprint, long templateFingerprint, MatchingMethod method, double threshold,
+                   Rectangle sourceRect) {
+        return new Key(sourceFingerprint, templateFingerprint, method, threshold, sourceRect);
+    }
+
+    static final class Key {
+        private final long sourceFingerprint;
+        private final long templateFingerprint;
+        private final MatchingMethod method;
+        private final double threshold;
+        private final Rectangle sourceRect;
+
+        private Key(long sourceFingerprint, long templateFingerprint, MatchingMethod method, double threshold,
+                    Rectangle sourceRect) {
+            this.sourceFingerprint = sourceFingerprint;
+            this.templateFingerprint = templateFingerprint;
+            this.method = method;
+            this.threshold = threshold;
+            this.sourceRect = sourceRect == null ? null : new Rectangle(sourceRect);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return sourceFingerprint == key.sourceFingerprint
+                   && templateFingerprint == key.templateFingerprint
+                   && Double.compare(threshold, key.threshold) == 0
+                   && method == key.method
+                   && Objects.equals(sourceRect, key.sourceRect);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sourceFingerprint, templateFingerprint, method, threshold, sourceRect);
+        }
+    }
+
+    /**
+     * The values of a result or failure. Callers may modify the returned
+     * rectangles, so the entry keeps its own copy and hands out new ones.
+     */
+    private static final class CacheEntry {
+        private final boolean failure;
+        private final String message;
+        private final Rectangle location;
+        private final double accuracy;
+        private final int inlierCount;
+        private final int matchCount;
+        private final long createdAt;
+
+        private CacheEntry(boolean failure, String message, Rectangle location, double accuracy, int inlierCount,
+                           int matchCount, long createdAt) {
+            this.failure = failure;
+            this.message = message;
+            this.location = location;
+            this.accuracy = accuracy;
+            this.inlierCount = inlierCount;
+            this.matchCount = matchCount;
+            this.createdAt = createdAt;
+        }
+    }
+}
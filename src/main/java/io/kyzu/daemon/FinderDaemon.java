@@ -0,0 +1,564 @@
+package io.kyzu.daemon;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.kyzu.core.ImageFinderResult;
+import io.kyzu.core.KeypointImageFinder;
+import io.kyzu.core.MatchingImageFinder;
+import io.kyzu.exceptions.ImageNotFoundException;
+import io.kyzu.models.MatchingFeature2d;
+import io.kyzu.models.MatchingMethod;
+import io.kyzu.models.constants.PnPContants;
+import io.kyzu.utils.CommandLine;
+import nu.pattern.OpenCV;
+
+/**
+ * Long-lived local finder service. It keeps OpenCV loaded and the decoded
+ * templates and their keypoint features in memory, and serves lookups from many test JVMs over a
+ * loopback socket on one worker pool sized to the number of cores. Clients
+ * talk to it through FinderDaemonClient.
+ *
+ * <pre>
+ * java -cp opencv-pnp.jar io.kyzu.daemon.FinderDaemon [--port 47100] [--templates dir] [--threads n]
+ * </pre>
+ */
+public class FinderDaemon implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String USAGE = "Usage: FinderDaemon [--port <port>] [--templates <dir>] [--threads <n>]";
+
+    static {
+        OpenCV.loadShared();
+        System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME);
+    }
+
+    private final ServerSocket serverSocket;
+    private final int maxCachedTemplates;
+    private final long templateIdleNanos;
+    private final ExecutorService workers;
+    private final ExecutorService connections;
+    private final ConcurrentMap<String, CachedTemplate> templates = new ConcurrentHashMap<>();
+    private final ConcurrentMap<MatchingMethod, MatchingImageFinder> matchingFinders = new ConcurrentHashMap<>();
+    private final KeypointImageFinder keypointFinder = new KeypointImageFinder();
+
+    /**
+     * Binds the daemon to the loopback interface.
+     *
+     * @param port The port to listen on, or 0 for any free port.
+     * @param threads The number of lookups processed in parallel.
+     */
+    public FinderDaemon(int port, int threads) throws IOException {
+        this(port, threads, PnPContants.FINDER_DAEMON_MAX_CACHED_TEMPLATES, PnPContants.FINDER_DAEMON_TEMPLATE_IDLE_MS);
+    }
+
+    /**
+     * Binds the daemon to the loopback interface.
+     *
+     * @param port The port to listen on, or 0 for any free port.
+     * @param threads The number of lookups processed in parallel.
+     * @param maxCachedTemplates The number of templates sent by clients or
+     * referenced by path that are kept. Templates loaded from a directory or
+     * registered under a name are not counted and never evicted.
+     * @param templateIdleMillis The time after which a template sent by a
+     * client or referenced by path is evicted when no lookup used it.
+     */
+    public FinderDaemon(int port, int threads, int maxCachedTemplates, long templateIdleMillis) throws IOException {
+        this.maxCachedTemplates = maxCachedTemplates;
+        this.templateIdleNanos = TimeUnit.MILLISECONDS.toNanos(templateIdleMillis);
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        this.workers = Executors.newFixedThreadPool(threads, namedThreads("finder-worker-"));
+        this.connections = Executors.newCachedThreadPool(namedThreads("finder-connection-"));
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = CommandLine.parseOptions(args, USAGE);
+        int port = Integer.parseInt(options.getOrDefault("port", String.valueOf(PnPContants.FINDER_DAEMON_PORT)));
+        int threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+        FinderDaemon daemon = new FinderDaemon(port, threads);
+        if (options.containsKey("templates")) {
+            daemon.loadTemplates(Paths.get(options.get("templates")));
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(daemon::close));
+        daemon.serve();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Decodes every image of a directory and registers it under its file
+     * name.
+     */
+    public void loadTemplates(Path templateDir) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(templateDir)) {
+            for (Path path : stream) {
+                if (!Files.isRegularFile(path)) {
+                    continue;
+                }
+                Mat template = Imgcodecs.imread(path.toAbsolutePath().toString());
+                if (template.empty()) {
+                    LOGGER.warn("Skipping template that could not be decoded: " + path);
+                    continue;
+                }
+                registerTemplate(path.getFileName().toString(), template);
+            }
+        }
+        LOGGER.info("Loaded " + templates.size() + " templates from " + templateDir);
+    }
+
+    /**
+     * Registers a template under an identifier. The daemon takes ownership
+     * of the Mat. A template registered under a content fingerprint is never
+     * replaced, so a duplicate registration releases the incoming Mat, and
+     * it may be evicted; any other identifier is kept until it is replaced,
+     * and the replaced template is released once the lookups still using it
+     * end.
+     */
+    public void registerTemplate(String id, Mat template) {
+        if (id.startsWith(FinderProtocol.FINGERPRINT_PREFIX)) {
+            CachedTemplate cached = new CachedTemplate(template, 0, true);
+            if (templates.putIfAbsent(id, cached) != null) {
+                cached.release();
+            } else {
+                evictTemplates();
+            }
+            return;
+        }
+
+        CachedTemplate previous = templates.put(id, new CachedTemplate(template, 0, false));
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Warms OpenCV up and accepts connections until the daemon is closed.
+     */
+    public void serve() {
+        warmUp();
+        LOGGER.info("Finder daemon listening on " + serverSocket.getLocalSocketAddress());
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> handle(socket));
+            } catch (SocketException ex) {
+                if (!serverSocket.isClosed()) {
+                    LOGGER.error("Finder daemon socket failed", ex);
+                }
+            } catch (IOException ex) {
+                LOGGER.warn("Failed to accept a finder connection", ex);
+            }
+        }
+    }
+
+    /**
+     * Starts serving on a background thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this::serve, "finder-daemon");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to close the finder daemon socket", ex);
+        }
+        connections.shutdownNow();
+        workers.shutdownNow();
+
+        // lookups still running keep their templates until they end
+        for (String id : templates.keySet()) {
+            CachedTemplate cached = templates.remove(id);
+            if (cached != null) {
+                cached.release();
+            }
+        }
+    }
+
+    private void warmUp() {
+        Mat source = Mat.zeros(64, 64, org.opencv.core.CvType.CV_8UC3);
+        Mat template = Mat.ones(8, 8, org.opencv.core.CvType.CV_8UC3);
+        try {
+            matchingFinder(MatchingMethod.MM_SQDIFF_NORMED).findMatchingImage(source, template, 0);
+        } catch (RuntimeException ex) {
+            // the result does not matter, only the native initialization
+        } finally {
+            source.release();
+            template.release();
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket client = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()))) {
+            client.setTcpNoDelay(true);
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException ex) {
+                    return;
+                }
+
+                Response response;
+                try {
+                    response = workers.submit(readRequest(op, in)).get();
+                } catch (ExecutionException ex) {
+                    response = Response.error(FinderProtocol.STATUS_ERROR, String.valueOf(ex.getCause()));
+                }
+                response.write(out);
+                out.flush();
+            }
+        } catch (IOException ex) {
+            LOGGER.debug("Finder connection closed: " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads a whole request on the connection thread and returns the work to
+     * run on the worker pool. Only the bytes are read here; decoding the
+     * images runs on the worker pool, which bounds it by the number of
+     * workers.
+     */
+    private Callable<Response> readRequest(byte op, DataInputStream in) throws IOException {
+        switch (op) {
+            case FinderProtocol.OP_FIND_MATCHING: {
+                MatchingMethod method = MatchingMethod.valueOf(in.readUTF());
+                double threshold = in.readDouble();
+                TemplateRef template = TemplateRef.read(in);
+                FinderProtocol.SourceData source = FinderProtocol.readSource(in);
+                Rectangle sourceRect = FinderProtocol.readRect(in);
+                return () -> find(template, source, sourceRect,
+                        (src, tpl) -> matchingFinder(method).findMatchingImage(src, tpl.image, threshold));
+            }
+
+            case FinderProtocol.OP_FIND_KEYPOINT: {
+                MatchingFeature2d detector = MatchingFeature2d.valueOf(in.readUTF());
+                double threshold = in.readDouble();
+                TemplateRef template = TemplateRef.read(in);
+                FinderProtocol.SourceData source = FinderProtocol.readSource(in);
+                return () -> find(template, source, null,
+                        (src, tpl) -> keypointFinder.findImageByKeypoint(src, tpl.features(keypointFinder, detector), threshold));
+            }
+
+            case FinderProtocol.OP_REGISTER_TEMPLATE: {
+                String id = in.readUTF();
+                FinderProtocol.ImageData template = FinderProtocol.readImage(in);
+                return () -> {
+                    registerTemplate(id, template.toMat());
+                    return Response.ok(null);
+                };
+            }
+
+            case FinderProtocol.OP_PING:
+                return () -> Response.ok(null);
+
+            default:
+                throw new IOException("Unknown finder operation: " + op);
+        }
+    }
+
+    private Response find(TemplateRef templateRef, FinderProtocol.SourceData sourceData, Rectangle sourceRect,
+                          Lookup lookup) {
+        Mat source = sourceData.decode();
+        Mat region = source;
+        CachedTemplate template = null;
+        try {
+            if (source.empty()) {
+                return Response.error(FinderProtocol.STATUS_ERROR, "The source image could not be decoded");
+            }
+            template = acquireTemplate(templateRef);
+            if (template == null) {
+                return Response.error(FinderProtocol.STATUS_UNKNOWN_TEMPLATE, templateRef.value);
+            }
+            if (sourceRect != null) {
+                region = source.submat(sourceRect.y, sourceRect.y + sourceRect.height,
+                        sourceRect.x, sourceRect.x + sourceRect.width);
+            }
+            return Response.ok(lookup.find(region, template));
+        } catch (ImageNotFoundException ex) {
+            return Response.error(FinderProtocol.STATUS_NOT_FOUND, String.valueOf(ex.getMessage()));
+        } catch (UnsupportedOperationException ex) {
+            return Response.error(FinderProtocol.STATUS_UNSUPPORTED, String.valueOf(ex.getMessage()));
+        } catch (RuntimeException ex) {
+            LOGGER.warn("Failed to perform a finder request", ex);
+            return Response.error(FinderProtocol.STATUS_ERROR, String.valueOf(ex));
+        } finally {
+            if (template != null) {
+                template.release();
+            }
+            if (region != source) {
+                region.release();
+            }
+            source.release();
+        }
+    }
+
+    /**
+     * Returns a registered template with a reference held for the caller,
+     * loading templates referenced by path on first use. Returns null when
+     * no template is registered under the identifier.
+     */
+    private CachedTemplate acquireTemplate(TemplateRef templateRef) {
+        if (templateRef.kind == FinderProtocol.TEMPLATE_PATH) {
+            return acquirePathTemplate(new File(templateRef.value));
+        }
+
+        while (true) {
+            CachedTemplate cached = templates.get(templateRef.value);
+            if (cached == null || cached.retain()) {
+                return cached;
+            }
+            // replaced or evicted since it was read, so the map holds its replacement or nothing
+        }
+    }
+
+    /**
+     * Returns the template of a file, decoding it again when the file was
+     * modified since it was cached. There is one entry per path, and the
+     * replaced entry is released once the lookups still using it end.
+     */
+    private CachedTemplate acquirePathTemplate(File file) {
+        String id = "path:" + file.getAbsolutePath();
+        while (true) {
+            long lastModified = file.lastModified();
+            CachedTemplate cached = templates.get(id);
+            if (cached != null && cached.lastModified == lastModified) {
+                if (cached.retain()) {
+                    return cached;
+                }
+                continue;
+            }
+
+            Mat image = Imgcodecs.imread(file.getAbsolutePath());
+            if (image.empty()) {
+                image.release();
+                throw new ImageNotFoundException("The template image could not be decoded: " + file);
+            }
+
+            // one reference for the map and one for this lookup
+            CachedTemplate decoded = new CachedTemplate(image, lastModified, true);
+            decoded.retain();
+            boolean stored = cached == null
+                             ? templates.putIfAbsent(id, decoded) == null
+                             : templates.replace(id, cached, decoded);
+            if (!stored) {
+                // another lookup cached the file first, this decoding serves only this lookup
+                decoded.release();
+            } else {
+                if (cached != null) {
+                    cached.release();
+                }
+                evictTemplates();
+            }
+            return decoded;
+        }
+    }
+
+    /**
+     * Evicts the evictable templates that were not used within the idle
+     * time, then the least recently used ones beyond the maximum count. Runs
+     * whenever such a template is added, which is the only time the cache
+     * grows. The map's reference is released, so a template still in use is
+     * released when its last lookup ends, and a client that sends an evicted
+     * template again registers it again.
+     */
+    private void evictTemplates() {
+        long now = System.nanoTime();
+        List<Map.Entry<String, CachedTemplate>> evictable = new ArrayList<>();
+        for (Map.Entry<String, CachedTemplate> entry : templates.entrySet()) {
+            CachedTemplate cached = entry.getValue();
+            if (!cached.evictable) {
+                continue;
+            }
+            if (now - cached.lastUsed > templateIdleNanos) {
+                evict(entry.getKey(), cached);
+            } else {
+                evictable.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), cached));
+            }
+        }
+
+        if (evictable.size() > maxCachedTemplates) {
+            evictable.sort(Comparator.comparingLong(entry -> entry.getValue().lastUsed));
+            for (Map.Entry<String, CachedTemplate> entry : evictable.subList(0, evictable.size() - maxCachedTemplates)) {
+                evict(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void evict(String id, CachedTemplate cached) {
+        if (templates.remove(id, cached)) {
+            cached.release();
+        }
+    }
+
+    private MatchingImageFinder matchingFinder(MatchingMethod method) {
+        return matchingFinders.computeIfAbsent(method, MatchingImageFinder::new);
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private interface Lookup {
+        ImageFinderResult find(Mat source, CachedTemplate template);
+    }
+
+    /**
+     * A decoded template and its keypoint features per detector, shared by
+     * concurrent lookups. It is reference counted: the template map holds one
+     * reference and every running lookup another, so a replaced or evicted
+     * template is released only after the last lookup using it ends.
+     */
+    private static final class CachedTemplate {
+        private final Mat image;
+        private final long lastModified;
+        private final boolean evictable;
+        private volatile long lastUsed = System.nanoTime();
+        private final ConcurrentMap<MatchingFeature2d, KeypointImageFinder.TemplateFeatures> features = new ConcurrentHashMap<>();
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private CachedTemplate(Mat image, long lastModified, boolean evictable) {
+            this.image = image;
+            this.lastModified = lastModified;
+            this.evictable = evictable;
+        }
+
+        /**
+         * Takes a reference, or returns false when the template was already
+         * released.
+         */
+        boolean retain() {
+            int count;
+            do {
+                count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(count, count + 1));
+            lastUsed = System.nanoTime();
+            return true;
+        }
+
+        /**
+         * Returns the keypoints and descriptors of the template, detected on
+         * the first keypoint lookup with the detector.
+         */
+        KeypointImageFinder.TemplateFeatures features(KeypointImageFinder finder, MatchingFeature2d detector) {
+            return features.computeIfAbsent(detector, d -> finder.prepareTemplate(image, d));
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                for (KeypointImageFinder.TemplateFeatures detected : features.values()) {
+                    detected.close();
+                }
+                image.release();
+            }
+        }
+    }
+
+    private static final class TemplateRef {
+        private final byte kind;
+        private final String value;
+
+        private TemplateRef(byte kind, String value) {
+            this.kind = kind;
+            this.value = value;
+        }
+
+        static TemplateRef read(DataInputStream in) throws IOException {
+            return new TemplateRef(in.readByte(), in.readUTF());
+        }
+    }
+
+    private static final class Response {
+        private final byte status;
+        private final ImageFinderResult result;
+        private final String message;
+
+        private Response(byte status, ImageFinderResult result, String message) {
+            this.status = status;
+            this.result = result;
+            this.message = message;
+        }
+
+        static Response ok(ImageFinderResult result) {
+            return new Response(FinderProtocol.STATUS_OK, result, null);
+        }
+
+        static Response error(byte status, String message) {
+            return new Response(status, null, message);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(status);
+            if (status != FinderProtocol.STATUS_OK) {
+                out.writeUTF(message);
+                return;
+            }
+
+            Rectangle location = result == null ? new Rectangle() : result.getImageLocation();
+            out.writeDouble(result == null ? 0 : result.getThreshold());
+            out.writeInt(location.x);
+            out.writeInt(location.y);
+            out.writeInt(location.width);
+            out.writeInt(location.height);
+            out.writeInt(result == null ? 0 : result.getInlierCount());
+            out.writeInt(result == null ? 0 : result.getMatchCount());
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package io.kyzu.daemon;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import javax.imageio.ImageIO;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.openqa.selenium.OutputType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.kyzu.core.ImageFinderResult;
+import io.kyzu.exceptions.ImageNotFoundException;
+import io.kyzu.interfaces.IKeypointImageFinder;
+import io.kyzu.interfaces.IMatchingImageFinder;
+import io.kyzu.models.MatchingFeature2d;
+import io.kyzu.models.MatchingMethod;
+import io.kyzu.models.constants.PnPContants;
+import io.kyzu.utils.Converter;
+import io.kyzu.utils.Fingerprint;
+
+import io.appium.java_client.AppiumDriver;
+
+/**
+ * Thin client of a FinderDaemon. Lookups run in the daemon, so the calling
+ * JVM shares its warm OpenCV, template cache and worker pool with every
+ * other client. Files, screenshots and template files are passed by path;
+ * in-memory images are sent as raw BGR pixels, or PNG encoded once when they
+ * are sent for several templates, and in-memory templates are
+ * registered in the daemon under their content fingerprint on first use.
+ * The file and BufferedImage lookups do not load OpenCV in the client.
+ */
+public class FinderDaemonClient implements IMatchingImageFinder, IKeypointImageFinder, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final InetSocketAddress address;
+    private final MatchingMethod matchingMethod;
+    private final ConcurrentLinkedDeque<Connection> idleConnections = new ConcurrentLinkedDeque<>();
+
+    public FinderDaemonClient() {
+        this(PnPContants.FINDER_DAEMON_PORT, MatchingMethod.MM_SQDIFF_NORMED);
+    }
+
+    /**
+     * @param port The port the daemon listens on, on the loopback interface.
+     * @param matchingMethod The template matching method requested from the
+     * daemon.
+     */
+    public FinderDaemonClient(int port, MatchingMethod matchingMethod) {
+        this.address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        this.matchingMethod = matchingMethod;
+    }
+
+    /**
+     * Finds a template image on the screen. The screenshot file is read by
+     * the daemon. Throws an exception when the image wasn't found or the
+     * desired accuracy couldn't be met.
+     */
+    @Override
+    public ImageFinderResult findMatchingImage(AppiumDriver driver, BufferedImage templateImage, double threshold,
+                                               Rectangle sourceRect) {
+        try {
+            File capture = driver.getScreenshotAs(OutputType.FILE);
+            return findMatching(Source.path(capture), Template.image(templateImage), threshold, sourceRect);
+        } catch (Exception ex) {
+            throw new ImageNotFoundException(PnPContants.ERR_FIND_IMG_STR, sourceRect, threshold);
+        }
+    }
+
+    /**
+     * Finds any one of the template images in a source image, the same way
+     * as MatchingImageFinder. The source image is PNG encoded once and the
+     * encoded bytes are sent once per template.
+     */
+    @Override
+    public ImageFinderResult findAnyMatchingImage(BufferedImage sourceImage, List<BufferedImage> templateImages,
+                                                  double threshold, Rectangle sourceRect) {
+        BufferedImage region = crop(sourceImage, sourceRect);
+        Source source = templateImages.size() > 1 ? Source.encoded(region) : Source.image(region);
+        ImageFinderResult bestResult = new ImageFinderResult(new Rectangle(100, 100, 100, 100), 0);
+        for (BufferedImage templateImage : templateImages) {
+            bestResult = better(bestResult, source, Template.image(templateImage), threshold, null);
+            if (bestResult.getThreshold() >= threshold) {
+                break;
+            }
+        }
+        return checkBest(bestResult, templateImages.size(), threshold, sourceRect);
+    }
+
+    /**
+     * Finds any one of the template images in a source image, the same way
+     * as MatchingImageFinder. All files are read by the daemon.
+     */
+    @Override
+    public ImageFinderResult findAnyMatchingImage(File sourceImage, List<File> templateImages, double threshold,
+                                                  Rectangle sourceRect) {
+        Source source = Source.path(sourceImage);
+        ImageFinderResult bestResult = new ImageFinderResult(new Rectangle(100, 100, 100, 100), 0);
+        for (File templateImage : templateImages) {
+            bestResult = better(bestResult, source, Template.path(templateImage), threshold, sourceRect);
+            if (bestResult.getThreshold() >= threshold) {
+                break;
+            }
+        }
+        return checkBest(bestResult, templateImages.size(), threshold, sourceRect);
+    }
+
+    @Override
+    public ImageFinderResult findMatchingImage(BufferedImage sourceImage, BufferedImage templateImage, double threshold,
+                                               Rectangle sourceRect) {
+        return findMatching(Source.image(crop(sourceImage, sourceRect)), Template.image(templateImage), threshold, null);
+    }
+
+    @Override
+    public ImageFinderResult findMatchingImage(File sourceImage, File templateImage, double threshold) {
+        return findMatching(Source.path(sourceImage), Template.path(templateImage), threshold, null);
+    }
+
+    @Override
+    public ImageFinderResult findMatchingImage(Mat sourceMat, Mat templateMat, double threshold) {
+        return findMatching(Source.mat(sourceMat), Template.mat(templateMat), threshold, null);
+    }
+
+    @Override
+    public ImageFinderResult findMatchingImage(AppiumDriver driver, File templateImage, double threshold, Rectangle sourceRect) {
+        try {
+            File capture = driver.getScreenshotAs(OutputType.FILE);
+            return findMatching(Source.path(capture), Template.path(templateImage), threshold, sourceRect);
+        } catch (Exception ex) {
+            throw new ImageNotFoundException(PnPContants.ERR_FIND_IMG_STR, sourceRect, threshold);
+        }
+    }
+
+    /**
+     * Finds a template registered in the daemon under the given identifier,
+     * for example a file name of its template directory.
+     */
+    public ImageFinderResult findMatchingImage(File sourceImage, String templateId, double threshold, Rectangle sourceRect) {
+        return findMatching(Source.path(sourceImage), Template.id(templateId), threshold, sourceRect);
+    }
+
+    /**
+     * Finds a template registered in the daemon under the given identifier,
+     * for example a file name of its template directory.
+     */
+    public ImageFinderResult findMatchingImage(BufferedImage sourceImage, String templateId, double threshold,
+                                               Rectangle sourceRect) {
+        return findMatching(Source.image(crop(sourceImage, sourceRect)), Template.id(templateId), threshold, null);
+    }
+
+    @Override
+    public ImageFinderResult findImageByKeypoint(Mat source, Mat template, MatchingFeature2d detector) {
+        return findImageByKeypoint(source, template, detector, PnPContants.MATCH_THRESHOLD);
+    }
+
+    @Override
+    public ImageFinderResult findImageByKeypoint(Mat source, Mat template, MatchingFeature2d detector, double threshold) {
+        Source src = Source.mat(source);
+        Template tpl = Template.mat(template);
+        return request(out -> {
+            out.writeByte(FinderProtocol.OP_FIND_KEYPOINT);
+            out.writeUTF(detector.name());
+            out.writeDouble(threshold);
+            tpl.write(out);
+            src.write(out);
+        }, tpl);
+    }
+
+    /**
+     * Registers a template in the daemon under the given identifier.
+     */
+    public void registerTemplate(String id, BufferedImage templateImage) {
+        register(id, Template.image(templateImage));
+    }
+
+    /**
+     * Checks that the daemon is reachable.
+     */
+    public void ping() {
+        request(out -> out.writeByte(FinderProtocol.OP_PING), null);
+    }
+
+    @Override
+    public void close() {
+        Connection connection;
+        while ((connection = idleConnections.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    private ImageFinderResult findMatching(Source source, Template template, double threshold, Rectangle sourceRect) {
+        return request(out -> {
+            out.writeByte(FinderProtocol.OP_FIND_MATCHING);
+            out.writeUTF(matchingMethod.name());
+            out.writeDouble(threshold);
+            template.write(out);
+            source.write(out);
+            FinderProtocol.writeRect(out, sourceRect);
+        }, template);
+    }
+
+    private ImageFinderResult better(ImageFinderResult bestResult, Source source, Template template, double threshold,
+                                     Rectangle sourceRect) {
+        try {
+            ImageFinderResult result = findMatching(source, template, 0, sourceRect);
+            LOGGER.info("Image was found at the threshold of: " + result.getThreshold());
+            if (result.getThreshold() > bestResult.getThreshold() && result.getThreshold() >= threshold) {
+                return result;
+            }
+        } catch (UnsupportedOperationException ex) {
+            LOGGER.error("The template image is larger than the source image", ex);
+        } catch (Exception ex) {
+            LOGGER.warn("Failed to perform an image template matching operation", ex);
+        }
+        return bestResult;
+    }
+
+    private ImageFinderResult checkBest(ImageFinderResult bestResult, int templateCount, double threshold,
+                                        Rectangle sourceRect) {
+        if (bestResult.getThreshold() < threshold) {
+            String messagePrefix = templateCount == 1
+                                   ? "Failed to find the template image"
+                                   : String.format("Failed to find one of %s template images", templateCount);
+            String where = sourceRect == null
+                           ? ""
+                           : String.format(" at (%s, %s, %s, %s)", sourceRect.x, sourceRect.y, sourceRect.width, sourceRect.height);
+
+            throw new ImageNotFoundException(
+                    String.format("%s in the source image%s. The best accuracy was %.2f and the desired accuracy was %.2f",
+                            messagePrefix, where, bestResult.getThreshold(), threshold),
+                    bestResult.getImageLocation(),
+                    bestResult.getThreshold());
+        }
+        return bestResult;
+    }
+
+    private void register(String id, Template template) {
+        request(out -> {
+            out.writeByte(FinderProtocol.OP_REGISTER_TEMPLATE);
+            out.writeUTF(id);
+            FinderProtocol.writeImage(out, template.pixels, template.rows, template.cols, template.type);
+        }, null);
+    }
+
+    /**
+     * Sends a request and maps the response. When the daemon does not know
+     * an in-memory template, it is registered and the request sent again.
+     */
+    private ImageFinderResult request(RequestWriter request, Template template) {
+        Response response = roundTrip(request);
+        if (response.status == FinderProtocol.STATUS_UNKNOWN_TEMPLATE && template != null && template.pixels != null) {
+            register(template.value, template);
+            response = roundTrip(request);
+        }
+
+        switch (response.status) {
+            case FinderProtocol.STATUS_OK:
+                return response.result;
+            case FinderProtocol.STATUS_UNSUPPORTED:
+                throw new UnsupportedOperationException(response.message);
+            case FinderProtocol.STATUS_UNKNOWN_TEMPLATE:
+                throw new ImageNotFoundException("The finder daemon does not know the template: " + response.message);
+            default:
+                throw new ImageNotFoundException(response.message);
+        }
+    }
+
+    /**
+     * Runs one request on an idle connection. A failure on a reused
+     * connection is retried once on a new one, since the daemon may have
+     * closed it in the meantime.
+     */
+    private Response roundTrip(RequestWriter request) {
+        Connection connection = idleConnections.poll();
+        boolean reused = connection != null;
+        try {
+            if (connection == null) {
+                connection = new Connection(address);
+            }
+            Response response = connection.send(request);
+            idleConnections.push(connection);
+            return response;
+        } catch (IOException ex) {
+            if (connection != null) {
+                connection.close();
+            }
+            if (reused) {
+                return roundTrip(request);
+            }
+            throw new UncheckedIOException("Failed to reach the finder daemon at " + address, ex);
+        } catch (RuntimeException ex) {
+            // the request may be half written, so the connection can't be reused
+            if (connection != null) {
+                connection.close();
+            }
+            throw ex;
+        }
+    }
+
+    private static BufferedImage crop(BufferedImage image, Rectangle sourceRect) {
+        if (sourceRect == null) {
+            return image;
+        }
+        return image.getSubimage(sourceRect.x, sourceRect.y, sourceRect.width, sourceRect.height);
+    }
+
+    private interface RequestWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static final class Connection {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        Connection(InetSocketAddress address) throws IOException {
+            this.socket = new Socket();
+            this.socket.setTcpNoDelay(true);
+            this.socket.connect(address);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        Response send(RequestWriter request) throws IOException {
+            request.write(out);
+            out.flush();
+            return Response.read(in);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                LOGGER.debug("Failed to close a finder daemon connection: " + ex.getMessage());
+            }
+        }
+    }
+
+    private static final class Response {
+        private final byte status;
+        private final ImageFinderResult result;
+        private final String message;
+
+        private Response(byte status, ImageFinderResult result, String message) {
+            this.status = status;
+            this.result = result;
+            this.message = message;
+        }
+
+        static Response read(DataInputStream in) throws IOException {
+            byte status = in.readByte();
+            if (status != FinderProtocol.STATUS_OK) {
+                return new Response(status, null, in.readUTF());
+            }
+
+            double accuracy = in.readDouble();
+            Rectangle location = new Rectangle(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+            int inliers = in.readInt();
+            int matches = in.readInt();
+            return new Response(status, new ImageFinderResult(location, accuracy, inliers, matches), null);
+        }
+    }
+
+    private static final class Source {
+        private final byte kind;
+        private final String path;
+        private final byte[] pixels;
+        private final Mat mat;
+        private final int rows;
+        private final int cols;
+
+        /**
+         * @param pixels The raw BGR pixels, or the encoded image for
+         * SOURCE_ENCODED.
+         */
+        private Source(byte kind, String path, byte[] pixels, Mat mat, int rows, int cols) {
+            this.kind = kind;
+            this.path = path;
+            this.pixels = pixels;
+            this.mat = mat;
+            this.rows = rows;
+            this.cols = cols;
+        }
+
+        static Source path(File file) {
+            return new Source(FinderProtocol.SOURCE_PATH, file.getAbsolutePath(), null, null, 0, 0);
+        }
+
+        static Source image(BufferedImage image) {
+            return new Source(FinderProtocol.SOURCE_RAW, null, Converter.convertToBgrBytes(image), null,
+                    image.getHeight(), image.getWidth());
+        }
+
+        /**
+         * Encodes the image as PNG, which is lossless and much smaller than
+         * the raw pixels of a screenshot. Falls back to the raw pixels when
+         * no PNG writer supports the image.
+         */
+        static Source encoded(BufferedImage image) {
+            // the daemon decodes without alpha, so flatten it the same way as the raw BGR conversion
+            BufferedImage opaque = image;
+            if (image.getColorModel().hasAlpha()) {
+                opaque = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+                opaque.getGraphics().drawImage(image, 0, 0, null);
+            }
+
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            try {
+                if (ImageIO.write(opaque, "png", encoded)) {
+                    return new Source(FinderProtocol.SOURCE_ENCODED, null, encoded.toByteArray(), null, 0, 0);
+                }
+            } catch (IOException ex) {
+                LOGGER.debug("Failed to encode the source image, sending the raw pixels: " + ex.getMessage());
+            }
+            return image(image);
+        }
+
+        static Source mat(Mat mat) {
+            // rejected here, before a connection is taken, rather than while the request is written
+            if (mat.depth() != CvType.CV_8U) {
+                throw new IllegalArgumentException("Only 8-bit images can be sent, got type: " + CvType.typeToString(mat.type()));
+            }
+            return new Source(FinderProtocol.SOURCE_RAW, null, null, mat, 0, 0);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(kind);
+            if (kind == FinderProtocol.SOURCE_PATH) {
+                out.writeUTF(path);
+            } else if (kind == FinderProtocol.SOURCE_ENCODED) {
+                out.writeInt(pixels.length);
+                out.write(pixels);
+            } else if (mat != null) {
+                FinderProtocol.writeImage(out, mat);
+            } else {
+                FinderProtocol.writeImage(out, pixels, rows, cols, CvType.CV_8UC3);
+            }
+        }
+    }
+
+    private static final class Template {
+        private final byte kind;
+        private final String value;
+        private final byte[] pixels;
+        private final int rows;
+        private final int cols;
+        private final int type;
+
+        private Template(byte kind, String value, byte[] pixels, int rows, int cols, int type) {
+            this.kind = kind;
+            this.value = value;
+            this.pixels = pixels;
+            this.rows = rows;
+            this.cols = cols;
+            this.type = type;
+        }
+
+        static Template id(String id) {
+            return new Template(FinderProtocol.TEMPLATE_ID, id, null, 0, 0, 0);
+        }
+
+        static Template path(File file) {
+            return new Template(FinderProtocol.TEMPLATE_PATH, file.getAbsolutePath(), null, 0, 0, 0);
+        }
+
+        static Template image(BufferedImage image) {
+            return raw(Converter.convertToBgrBytes(image), image.getHeight(), image.getWidth(), CvType.CV_8UC3);
+        }
+
+        static Template mat(Mat mat) {
+            Mat continuous = mat.isContinuous() ? mat : mat.clone();
+            byte[] pixels = new byte[(int) (continuous.total() * continuous.elemSize())];
+            continuous.get(0, 0, pixels);
+            if (continuous != mat) {
+                continuous.release();
+            }
+            return raw(pixels, mat.rows(), mat.cols(), mat.type());
+        }
+
+        private static Template raw(byte[] pixels, int rows, int cols, int type) {
+            String id = FinderProtocol.FINGERPRINT_PREFIX + Long.toHexString(Fingerprint.of(pixels, rows, cols, type));
+            return new Template(FinderProtocol.TEMPLATE_ID, id, pixels, rows, cols, type);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(kind);
+            out.writeUTF(value);
+        }
+    }
+}
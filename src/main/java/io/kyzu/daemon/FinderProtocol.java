@@ -0,0 +1,192 @@
+package io.kyzu.daemon;
+
+import java.awt.Rectangle;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * Binary protocol between FinderDaemon and FinderDaemonClient. Every request
+ * starts with an operation byte and every response with a status byte; the
+ * payloads are written with DataOutputStream.
+ *
+ * <pre>
+ * FIND_MATCHING     method(UTF) threshold(double) template source rect
+ * FIND_KEYPOINT     detector(UTF) threshold(double) template source
+ * REGISTER_TEMPLATE id(UTF) image
+ * PING
+ *
+ * template          kind(byte: ID | PATH) value(UTF)
+ * source            kind(byte: PATH) path(UTF) | kind(byte: RAW) image | kind(byte: ENCODED) length(int) bytes
+ * image             rows(int) cols(int) type(int) length(int) bytes
+ * rect              present(boolean) [x(int) y(int) width(int) height(int)]
+ *
+ * OK                accuracy(double) x(int) y(int) width(int) height(int) inliers(int) matches(int)
+ * NOT_FOUND | UNKNOWN_TEMPLATE | UNSUPPORTED | ERROR   message(UTF)
+ * </pre>
+ */
+final class FinderProtocol {
+
+    static final byte OP_FIND_MATCHING = 1;
+    static final byte OP_FIND_KEYPOINT = 2;
+    static final byte OP_REGISTER_TEMPLATE = 3;
+    static final byte OP_PING = 4;
+
+    static final byte TEMPLATE_ID = 0;
+    static final byte TEMPLATE_PATH = 1;
+
+    /**
+     * Prefix of the identifiers of in-memory templates, followed by the hex
+     * content fingerprint.
+     */
+    static final String FINGERPRINT_PREFIX = "fingerprint:";
+
+    static final byte SOURCE_PATH = 1;
+    static final byte SOURCE_RAW = 2;
+    static final byte SOURCE_ENCODED = 3;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_NOT_FOUND = 1;
+    static final byte STATUS_UNKNOWN_TEMPLATE = 2;
+    static final byte STATUS_UNSUPPORTED = 3;
+    static final byte STATUS_ERROR = 4;
+
+    private FinderProtocol() {
+    }
+
+    /**
+     * Writes the raw pixels of an 8-bit Mat.
+     */
+    static void writeImage(DataOutputStream out, Mat mat) throws IOException {
+        if (mat.depth() != CvType.CV_8U) {
+            throw new IllegalArgumentException("Only 8-bit images can be sent, got type: " + CvType.typeToString(mat.type()));
+        }
+        Mat continuous = mat.isContinuous() ? mat : mat.clone();
+        byte[] pixels = new byte[(int) (continuous.total() * continuous.elemSize())];
+        continuous.get(0, 0, pixels);
+        if (continuous != mat) {
+            continuous.release();
+        }
+
+        writeImage(out, pixels, mat.rows(), mat.cols(), mat.type());
+    }
+
+    static void writeImage(DataOutputStream out, byte[] pixels, int rows, int cols, int type) throws IOException {
+        out.writeInt(rows);
+        out.writeInt(cols);
+        out.writeInt(type);
+        out.writeInt(pixels.length);
+        out.write(pixels);
+    }
+
+    /**
+     * Reads the pixels of an image without creating the Mat, so the caller
+     * decides on which thread the native copy runs.
+     */
+    static ImageData readImage(DataInputStream in) throws IOException {
+        int rows = in.readInt();
+        int cols = in.readInt();
+        int type = in.readInt();
+        byte[] pixels = new byte[in.readInt()];
+        in.readFully(pixels);
+        return new ImageData(rows, cols, type, pixels);
+    }
+
+    /**
+     * Reads a source image reference or payload without decoding it.
+     */
+    static SourceData readSource(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        switch (kind) {
+            case SOURCE_PATH:
+                return new SourceData(kind, in.readUTF(), null, null);
+
+            case SOURCE_RAW:
+                return new SourceData(kind, null, readImage(in), null);
+
+            case SOURCE_ENCODED:
+                byte[] encoded = new byte[in.readInt()];
+                in.readFully(encoded);
+                return new SourceData(kind, null, null, encoded);
+
+            default:
+                throw new IOException("Unknown source kind: " + kind);
+        }
+    }
+
+    static void writeRect(DataOutputStream out, Rectangle rect) throws IOException {
+        out.writeBoolean(rect != null);
+        if (rect != null) {
+            out.writeInt(rect.x);
+            out.writeInt(rect.y);
+            out.writeInt(rect.width);
+            out.writeInt(rect.height);
+        }
+    }
+
+    static Rectangle readRect(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        return new Rectangle(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+    }
+
+    static final class ImageData {
+        private final int rows;
+        private final int cols;
+        private final int type;
+        private final byte[] pixels;
+
+        private ImageData(int rows, int cols, int type, byte[] pixels) {
+            this.rows = rows;
+            this.cols = cols;
+            this.type = type;
+            this.pixels = pixels;
+        }
+
+        Mat toMat() {
+            Mat mat = new Mat(rows, cols, type);
+            mat.put(0, 0, pixels);
+            return mat;
+        }
+    }
+
+    static final class SourceData {
+        private final byte kind;
+        private final String path;
+        private final ImageData image;
+        private final byte[] encoded;
+
+        private SourceData(byte kind, String path, ImageData image, byte[] encoded) {
+            this.kind = kind;
+            this.path = path;
+            this.image = image;
+            this.encoded = encoded;
+        }
+
+        /**
+         * Reads, decodes or copies the source into a Mat, which is empty
+         * when the image could not be decoded.
+         */
+        Mat decode() {
+            switch (kind) {
+                case SOURCE_PATH:
+                    return Imgcodecs.imread(path);
+
+                case SOURCE_RAW:
+                    return image.toMat();
+
+                default:
+                    MatOfByte buffer = new MatOfByte(encoded);
+                    Mat decoded = Imgcodecs.imdecode(buffer, Imgcodecs.IMREAD_COLOR);
+                    buffer.release();
+                    return decoded;
+            }
+        }
+    }
+}
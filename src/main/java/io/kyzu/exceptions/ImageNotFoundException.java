@@ -25,4 +25,12 @@ public class ImageNotFoundException extends RuntimeException {
         this.foundRect = foundRect;
         this.threshold = threshold;
     }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    public Rectangle getFoundRect() {
+        return foundRect;
+    }
 }
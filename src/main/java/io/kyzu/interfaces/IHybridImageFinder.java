@@ -0,0 +1,14 @@
+package io.kyzu.interfaces;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+import org.opencv.core.Mat;
+
+import io.kyzu.core.ImageFinderResult;
+
+public interface IHybridImageFinder {
+    ImageFinderResult findImage(Mat source, Mat template, double threshold);
+
+    ImageFinderResult findImage(BufferedImage sourceImage, BufferedImage templateImage, double threshold, Rectangle sourceRect);
+}
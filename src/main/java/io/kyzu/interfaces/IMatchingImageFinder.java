@@ -5,6 +5,8 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.util.List;
 
+import org.opencv.core.Mat;
+
 import io.kyzu.core.ImageFinderResult;
 
 import io.appium.java_client.AppiumDriver;
@@ -20,5 +22,7 @@ public interface IMatchingImageFinder {
 
     ImageFinderResult findMatchingImage(File sourceImage, File templateImage, double threshold);
 
+    ImageFinderResult findMatchingImage(Mat sourceMat, Mat templateMat, double threshold);
+
     ImageFinderResult findMatchingImage(AppiumDriver driver, File templateImage, double threshold, Rectangle sourceRect);
 }
@@ -0,0 +1,124 @@
+package io.kyzu.loadtest;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe log-linear histogram of latencies in microseconds. Every power
+ * of two is split in 16 linear sub-buckets, so recorded values keep a
+ * relative precision of about 6% while the memory footprint stays fixed.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long micros) {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(indexOf(value));
+        totalCount.incrementAndGet();
+        totalMicros.addAndGet(value);
+
+        long max;
+        do {
+            max = maxMicros.get();
+        } while (value > max && !maxMicros.compareAndSet(max, value));
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    public double getMeanMicros() {
+        long count = totalCount.get();
+        return count == 0 ? 0 : (double) totalMicros.get() / count;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile.
+     *
+     * @param percentile A number between 0 and 100.
+     */
+    public long getPercentileMicros(double percentile) {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100d * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperOf(i), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    /**
+     * Renders the histogram with one row per power of two of milliseconds.
+     */
+    public String render() {
+        long count = totalCount.get();
+        if (count == 0) {
+            return "    (no samples)\n";
+        }
+
+        long[] rows = new long[Long.SIZE];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long millis = lowerOf(i) / 1000;
+            int row = millis == 0 ? 0 : Long.SIZE - Long.numberOfLeadingZeros(millis);
+            rows[row] += counts.get(i);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int row = 0; row < rows.length; row++) {
+            if (rows[row] == 0) {
+                continue;
+            }
+            long lowerMillis = row == 0 ? 0 : 1L << (row - 1);
+            long upperMillis = 1L << row;
+            sb.append(String.format(Locale.ROOT, "    %6d - %6d ms %9d ", lowerMillis, upperMillis, rows[row]));
+            int bar = (int) Math.round(50d * rows[row] / count);
+            for (int i = 0; i < bar; i++) {
+                sb.append('#');
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    private static long lowerOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long mantissa = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + mantissa) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    private static long upperOf(int index) {
+        return index + 1 < BUCKET_COUNT ? lowerOf(index + 1) - 1 : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,296 @@
+package io.kyzu.loadtest;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.Mat;
+
+import io.kyzu.core.KeypointImageFinder;
+import io.kyzu.core.MatchingImageFinder;
+import io.kyzu.exceptions.ImageNotFoundException;
+import io.kyzu.models.MatchingFeature2d;
+import io.kyzu.models.MatchingMethod;
+import io.kyzu.models.constants.PnPContants;
+import io.kyzu.utils.CommandLine;
+import io.kyzu.utils.Converter;
+import nu.pattern.OpenCV;
+
+/**
+ * Self-contained load generator for the image finders. It drives
+ * MatchingImageFinder and KeypointImageFinder from a number of threads for a
+ * fixed duration against synthetic screenshots, and reports throughput,
+ * latency percentiles and histogram, accuracy against the ground truth and
+ * the heap and resident memory trend of the process. No device or Appium
+ * server is needed.
+ *
+ * <pre>
+ * java -cp opencv-pnp.jar io.kyzu.loadtest.LoadTestHarness \
+ *     [--finder all|matching|keypoint] [--threads 4] [--duration 30] [--warmup 3] \
+ *     [--width 1080] [--height 1920] [--templates 8] [--threshold 0.9] [--detector SIFT]
+ * </pre>
+ */
+public class LoadTestHarness {
+
+    private static final String USAGE = "Usage: LoadTestHarness [--finder all|matching|keypoint] [--threads <n>] "
+                                        + "[--duration <s>] [--warmup <s>] [--width <px>] [--height <px>] "
+                                        + "[--templates <n>] [--threshold <0..1>] [--detector <MatchingFeature2d>]";
+
+    private static final Path PROC_STATUS = Paths.get("/proc/self/status");
+    private static final double MIN_OVERLAP = 0.5;
+
+    static {
+        OpenCV.loadShared();
+        System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME);
+    }
+
+    private final SyntheticScreenSource screenSource;
+    private final int threads;
+    private final long durationMs;
+    private final long warmupMs;
+
+    public LoadTestHarness(SyntheticScreenSource screenSource, int threads, long durationMs, long warmupMs) {
+        this.screenSource = screenSource;
+        this.threads = threads;
+        this.durationMs = durationMs;
+        this.warmupMs = warmupMs;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = CommandLine.parseOptions(args, USAGE);
+        String finder = options.getOrDefault("finder", "all");
+        int threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        long durationMs = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("duration", "30")));
+        long warmupMs = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("warmup", "3")));
+        int width = Integer.parseInt(options.getOrDefault("width", "1080"));
+        int height = Integer.parseInt(options.getOrDefault("height", "1920"));
+        int templateCount = Integer.parseInt(options.getOrDefault("templates", "8"));
+        double threshold = Double.parseDouble(options.getOrDefault("threshold", String.valueOf(PnPContants.MATCH_THRESHOLD)));
+        MatchingFeature2d detector = MatchingFeature2d.valueOf(options.getOrDefault("detector", MatchingFeature2d.SIFT.name()));
+
+        SyntheticScreenSource screenSource = new SyntheticScreenSource(width, height, templateCount, 32, 42L);
+        LoadTestHarness harness = new LoadTestHarness(screenSource, threads, durationMs, warmupMs);
+
+        if ("all".equals(finder) || "matching".equals(finder)) {
+            MatchingImageFinder matchingFinder = new MatchingImageFinder(MatchingMethod.MM_SQDIFF_NORMED);
+            harness.run("MatchingImageFinder (" + MatchingMethod.MM_SQDIFF_NORMED.name() + ")",
+                    (screenshot, template, templateMat) ->
+                            matchingFinder.findMatchingImage(screenshot.getImage(), template, threshold, null).getImageLocation());
+        }
+
+        if ("all".equals(finder) || "keypoint".equals(finder)) {
+            KeypointImageFinder keypointFinder = new KeypointImageFinder();
+            harness.run("KeypointImageFinder (" + detector.name() + ")",
+                    (screenshot, template, templateMat) -> {
+                        Mat sourceMat = Converter.convertToMat(screenshot.getImage());
+                        try {
+                            return keypointFinder.findImageByKeypoint(sourceMat, templateMat, detector).getImageLocation();
+                        } finally {
+                            sourceMat.release();
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Runs one finder for the warm-up period, then for the measured duration,
+     * and prints its report.
+     */
+    public void run(String name, Lookup lookup) throws InterruptedException {
+        List<BufferedImage> templates = screenSource.getTemplates();
+        List<Mat> templateMats = new ArrayList<>(templates.size());
+        for (BufferedImage template : templates) {
+            templateMats.add(Converter.convertToMat(template));
+        }
+
+        drive(lookup, templateMats, warmupMs, new PhaseStats());
+
+        PhaseStats stats = new PhaseStats();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "load-test-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        stats.sample(start);
+        sampler.scheduleAtFixedRate(() -> stats.sample(start), 1, 1, TimeUnit.SECONDS);
+
+        drive(lookup, templateMats, durationMs, stats);
+        long elapsedNanos = System.nanoTime() - start;
+
+        sampler.shutdownNow();
+        sampler.awaitTermination(1, TimeUnit.SECONDS);
+        stats.sample(start);
+
+        for (Mat templateMat : templateMats) {
+            templateMat.release();
+        }
+        System.out.print(stats.report(name, threads, elapsedNanos));
+    }
+
+    private void drive(Lookup lookup, List<Mat> templateMats, long forMs, PhaseStats stats) throws InterruptedException {
+        if (forMs <= 0) {
+            return;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(forMs);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        SyntheticScreenSource.Screenshot screenshot = screenSource.getScreenshot();
+                        int templateIndex = screenshot.getTemplateIndex();
+                        long callStart = System.nanoTime();
+                        try {
+                            Rectangle found = lookup.find(screenshot, screenSource.getTemplates().get(templateIndex),
+                                    templateMats.get(templateIndex));
+                            stats.record(callStart, overlap(found, screenshot.getExpectedLocation()) >= MIN_OVERLAP);
+                        } catch (ImageNotFoundException ex) {
+                            stats.record(callStart, false);
+                        } catch (RuntimeException ex) {
+                            stats.recordError(callStart);
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }, "load-test-worker-" + i);
+            worker.start();
+        }
+        done.await();
+    }
+
+    /**
+     * Intersection over union of two rectangles.
+     */
+    private static double overlap(Rectangle found, Rectangle expected) {
+        if (found == null) {
+            return 0;
+        }
+        Rectangle intersection = found.intersection(expected);
+        if (intersection.isEmpty()) {
+            return 0;
+        }
+        double intersectionArea = (double) intersection.width * intersection.height;
+        double unionArea = (double) found.width * found.height + (double) expected.width * expected.height - intersectionArea;
+        return intersectionArea / unionArea;
+    }
+
+    /**
+     * Reads the resident set size of the process in megabytes, or -1 when it
+     * is not available on this platform.
+     */
+    private static double residentSetMb() {
+        if (!Files.isReadable(PROC_STATUS)) {
+            return -1;
+        }
+        try {
+            for (String line : Files.readAllLines(PROC_STATUS, StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024d;
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {
+            return -1;
+        }
+        return -1;
+    }
+
+    private static double heapUsedMb() {
+        Runtime runtime = Runtime.getRuntime();
+        return (runtime.totalMemory() - runtime.freeMemory()) / (1024d * 1024d);
+    }
+
+    /**
+     * A single lookup of a template in a synthetic screenshot.
+     */
+    public interface Lookup {
+        Rectangle find(SyntheticScreenSource.Screenshot screenshot, BufferedImage template, Mat templateMat);
+    }
+
+    private static class PhaseStats {
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final AtomicLong correct = new AtomicLong();
+        private final AtomicLong incorrect = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final List<double[]> samples = Collections.synchronizedList(new ArrayList<double[]>());
+
+        void record(long callStart, boolean isCorrect) {
+            latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - callStart));
+            (isCorrect ? correct : incorrect).incrementAndGet();
+        }
+
+        void recordError(long callStart) {
+            latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - callStart));
+            errors.incrementAndGet();
+        }
+
+        void sample(long start) {
+            samples.add(new double[] {
+                    (System.nanoTime() - start) / 1e9,
+                    latencies.getCount(),
+                    heapUsedMb(),
+                    residentSetMb()
+            });
+        }
+
+        String report(String name, int threads, long elapsedNanos) {
+            long calls = latencies.getCount();
+            double seconds = elapsedNanos / 1e9;
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.ROOT, "%n== %s, %d threads, %.1f s%n", name, threads, seconds));
+            sb.append(String.format(Locale.ROOT, "  calls       %d (%.1f/s)%n", calls, calls / seconds));
+            sb.append(String.format(Locale.ROOT, "  accuracy    %.2f%% correct, %d wrong or not found, %d errors%n",
+                    calls == 0 ? 0 : 100d * correct.get() / calls, incorrect.get(), errors.get()));
+            sb.append(String.format(Locale.ROOT, "  latency ms  mean %.2f  p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+                    latencies.getMeanMicros() / 1000d,
+                    latencies.getPercentileMicros(50) / 1000d,
+                    latencies.getPercentileMicros(90) / 1000d,
+                    latencies.getPercentileMicros(99) / 1000d,
+                    latencies.getPercentileMicros(99.9) / 1000d,
+                    latencies.getMaxMicros() / 1000d));
+            sb.append("  latency histogram\n").append(latencies.render());
+
+            List<double[]> snapshot;
+            synchronized (samples) {
+                snapshot = new ArrayList<>(samples);
+            }
+            sb.append("  memory          t(s)      calls   heap(MB)    rss(MB)\n");
+            int step = Math.max(1, snapshot.size() / 10);
+            for (int i = 0; i < snapshot.size(); i += step) {
+                appendSample(sb, snapshot.get(i));
+            }
+            if ((snapshot.size() - 1) % step != 0) {
+                appendSample(sb, snapshot.get(snapshot.size() - 1));
+            }
+
+            double[] first = snapshot.get(0);
+            double[] last = snapshot.get(snapshot.size() - 1);
+            double thousands = Math.max(1, last[1] - first[1]) / 1000d;
+            sb.append(String.format(Locale.ROOT, "  memory growth heap %+.2f MB, rss %+.2f MB per 1000 calls%n",
+                    (last[2] - first[2]) / thousands,
+                    first[3] < 0 ? 0 : (last[3] - first[3]) / thousands));
+            return sb.toString();
+        }
+
+        private static void appendSample(StringBuilder sb, double[] sample) {
+            sb.append(String.format(Locale.ROOT, "              %8.1f %10d %10.1f %10.1f%n",
+                    sample[0], (long) sample[1], sample[2], sample[3]));
+        }
+    }
+}
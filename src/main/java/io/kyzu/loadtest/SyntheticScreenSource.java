@@ -0,0 +1,162 @@
+package io.kyzu.loadtest;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offline stand-in for the screenshots of an AppiumDriver. It renders a pool
+ * of synthetic screens made of random UI-like shapes and text, each with one
+ * of its templates drawn at a random position, and hands them out in a round
+ * robin together with the ground truth location of the template.
+ */
+public class SyntheticScreenSource {
+
+    private final List<BufferedImage> templates;
+    private final List<Screenshot> screenshots;
+    private final AtomicLong cursor = new AtomicLong();
+
+    /**
+     * @param width The width of the synthetic screens.
+     * @param height The height of the synthetic screens.
+     * @param templateCount The number of distinct templates to generate.
+     * @param poolSize The number of pre-rendered screens to cycle through.
+     * @param seed The random seed, so that runs are reproducible.
+     */
+    public SyntheticScreenSource(int width, int height, int templateCount, int poolSize, long seed) {
+        Random random = new Random(seed);
+
+        List<BufferedImage> generatedTemplates = new ArrayList<>(templateCount);
+        for (int i = 0; i < templateCount; i++) {
+            generatedTemplates.add(renderTemplate(random, 80 + random.nextInt(80), 40 + random.nextInt(60)));
+        }
+        this.templates = Collections.unmodifiableList(generatedTemplates);
+
+        List<Screenshot> generatedScreenshots = new ArrayList<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            int templateIndex = random.nextInt(templateCount);
+            BufferedImage template = templates.get(templateIndex);
+            BufferedImage image = renderBackground(random, width, height);
+
+            Rectangle location = new Rectangle(
+                    random.nextInt(width - template.getWidth()),
+                    random.nextInt(height - template.getHeight()),
+                    template.getWidth(),
+                    template.getHeight());
+            Graphics2D graphics = image.createGraphics();
+            graphics.drawImage(template, location.x, location.y, null);
+            graphics.dispose();
+
+            generatedScreenshots.add(new Screenshot(image, templateIndex, location));
+        }
+        this.screenshots = Collections.unmodifiableList(generatedScreenshots);
+    }
+
+    /**
+     * Returns the next screen, the same way AppiumDriver#getScreenshotAs
+     * would during a test run.
+     */
+    public Screenshot getScreenshot() {
+        return screenshots.get((int) (cursor.getAndIncrement() % screenshots.size()));
+    }
+
+    public List<BufferedImage> getTemplates() {
+        return templates;
+    }
+
+    private static BufferedImage renderBackground(Random random, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(new Color(230 + random.nextInt(26), 230 + random.nextInt(26), 230 + random.nextInt(26)));
+        graphics.fillRect(0, 0, width, height);
+
+        int shapes = 20 + random.nextInt(20);
+        for (int i = 0; i < shapes; i++) {
+            drawShape(graphics, random, width, height);
+        }
+        graphics.dispose();
+        return image;
+    }
+
+    private static BufferedImage renderTemplate(Random random, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(randomColor(random));
+        graphics.fillRect(0, 0, width, height);
+
+        for (int i = 0; i < 6; i++) {
+            drawShape(graphics, random, width, height);
+        }
+
+        graphics.setColor(randomColor(random));
+        graphics.setFont(new Font(Font.SANS_SERIF, Font.BOLD, Math.max(10, height / 3)));
+        graphics.drawString(Long.toString(Math.abs(random.nextLong()) % 100000, 36), 4, height / 2 + height / 6);
+        graphics.dispose();
+        return image;
+    }
+
+    private static void drawShape(Graphics2D graphics, Random random, int width, int height) {
+        int w = 8 + random.nextInt(Math.max(1, width / 4));
+        int h = 8 + random.nextInt(Math.max(1, height / 4));
+        int x = random.nextInt(width);
+        int y = random.nextInt(height);
+
+        graphics.setColor(randomColor(random));
+        switch (random.nextInt(4)) {
+            case 0:
+                graphics.fillRect(x, y, w, h);
+                break;
+            case 1:
+                graphics.fillOval(x, y, w, h);
+                break;
+            case 2:
+                graphics.setStroke(new BasicStroke(1 + random.nextInt(4)));
+                graphics.drawLine(x, y, x + w, y + h);
+                break;
+            default:
+                graphics.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 10 + random.nextInt(14)));
+                graphics.drawString("Label " + random.nextInt(1000), x, y);
+                break;
+        }
+    }
+
+    private static Color randomColor(Random random) {
+        return new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+    }
+
+    /**
+     * A synthetic screen together with the template drawn on it and the
+     * location it was drawn at.
+     */
+    public static class Screenshot {
+        private final BufferedImage image;
+        private final int templateIndex;
+        private final Rectangle expectedLocation;
+
+        Screenshot(BufferedImage image, int templateIndex, Rectangle expectedLocation) {
+            this.image = image;
+            this.templateIndex = templateIndex;
+            this.expectedLocation = expectedLocation;
+        }
+
+        public BufferedImage getImage() {
+            return image;
+        }
+
+        public int getTemplateIndex() {
+            return templateIndex;
+        }
+
+        public Rectangle getExpectedLocation() {
+            return expectedLocation;
+        }
+    }
+}
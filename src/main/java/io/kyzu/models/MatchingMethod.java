@@ -36,7 +36,14 @@ public enum MatchingMethod {
     /**
      * Correlation coefficient.
      */
-    MM_CCOEFF(Imgproc.TM_CCOEFF);
+    MM_CCOEFF(Imgproc.TM_CCOEFF),
+
+    /**
+     * Chamfer distance between binary edge maps. Independent of the screen
+     * colors, e.g. dark and light themes. It has no OpenCV template matching
+     * counterpart.
+     */
+    MM_EDGE_CHAMFER(-1);
 
 
     private int templateMat;
@@ -0,0 +1,19 @@
+package io.kyzu.models;
+
+/**
+ * Strategies used by the hybrid image finder to locate a template.
+ */
+public enum MatchingStrategy {
+
+    /**
+     * Pixel-based template matching. Fast, but sensitive to scale and
+     * rotation.
+     */
+    TEMPLATE_MATCHING,
+
+    /**
+     * Keypoint matching with a homography. Robust to scale and rotation, but
+     * an order of magnitude slower.
+     */
+    KEYPOINT
+}
@@ -3,4 +3,12 @@ package io.kyzu.models.constants;
 public class PnPContants {
     public static final String ERR_FIND_IMG_STR = "An error occurred while trying to find an image on screen";
     public static final double MATCH_THRESHOLD = 0.9;
+    public static final int RESULT_CACHE_MAX_ENTRIES = 256;
+    public static final long RESULT_CACHE_TTL_MS = 30_000;
+    public static final double KEYPOINT_CONFIDENCE = 0.5;
+    public static final int KEYPOINT_MIN_INLIERS = 10;
+    public static final int FINDER_DAEMON_PORT = 47100;
+    public static final int FINDER_DAEMON_MAX_CACHED_TEMPLATES = 256;
+    public static final long FINDER_DAEMON_TEMPLATE_IDLE_MS = 600_000;
+    public static final double CHAMFER_MAX_DISTANCE = 8;
 }
@@ -0,0 +1,34 @@
+package io.kyzu.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class CommandLine {
+
+    /**
+     * Parses command-line arguments of the form --name value. Prints the usage
+     * and exits when an argument is not an option or an option has no value.
+     *
+     * @param args The command-line arguments.
+     * @param usage The usage line printed on invalid arguments.
+     * @return The option values by option name, without the leading dashes.
+     */
+    public static Map<String, String> parseOptions(String[] args, String usage) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                exitWithUsage(usage);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+
+    /**
+     * Prints the usage to the standard error and exits with status 2.
+     */
+    public static void exitWithUsage(String usage) {
+        System.err.println(usage);
+        System.exit(2);
+    }
+}
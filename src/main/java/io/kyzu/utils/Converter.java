@@ -26,23 +26,33 @@ public class Converter {
      * Converts a BufferedImage to an OpenCV Mat object.
      */
     public static Mat convertToMat(BufferedImage buffImg) {
+        byte[] pixels = convertToBgrBytes(buffImg);
+
+        Mat mat = new Mat(buffImg.getHeight(), buffImg.getWidth(), CvType.CV_8UC3);
+        mat.put(0, 0, pixels);
+        return mat;
+    }
+
+    /**
+     * Returns the pixels of a BufferedImage as packed BGR bytes, the layout
+     * of a CV_8UC3 Mat.
+     */
+    public static byte[] convertToBgrBytes(BufferedImage buffImg) {
         BufferedImage convertedImg = null;
+        int length = buffImg.getWidth() * buffImg.getHeight() * 3;
 
-        // Convert the image to TYPE_3BYTE_BGR, if necessary
-        if (buffImg.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+        // Convert the image to TYPE_3BYTE_BGR, if necessary. A sub-image shares the buffer of its parent, so it is
+        // copied as well.
+        if (buffImg.getType() == BufferedImage.TYPE_3BYTE_BGR
+            && buffImg.getRaster().getDataBuffer().getSize() == length) {
             convertedImg = buffImg;
         } else {
             convertedImg = new BufferedImage(buffImg.getWidth(), buffImg.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+            convertedImg.getGraphics().drawImage(buffImg, 0, 0, null);
         }
 
-        convertedImg.getGraphics().drawImage(buffImg, 0, 0, null);
-
         WritableRaster raster = convertedImg.getRaster();
         DataBufferByte data = (DataBufferByte) raster.getDataBuffer();
-        byte[] pixels = data.getData();
-
-        Mat mat = new Mat(buffImg.getHeight(), buffImg.getWidth(), CvType.CV_8UC3);
-        mat.put(0, 0, pixels);
-        return mat;
+        return data.getData();
     }
 }
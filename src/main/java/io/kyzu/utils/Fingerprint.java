@@ -0,0 +1,69 @@
+package io.kyzu.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+public class Fingerprint {
+
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+    private static final long MULTIPLIER = 0xBF58476D1CE4E5B9L;
+
+    /**
+     * Computes a fast 64-bit content hash of an 8-bit OpenCV Mat. The hash
+     * covers the dimensions, the type and every pixel of the Mat, so two frames
+     * share a fingerprint only when they are identical (barring collisions).
+     */
+    public static long of(Mat mat) {
+        if (mat.depth() != CvType.CV_8U) {
+            throw new IllegalArgumentException("Only 8-bit images can be fingerprinted, got type: " + CvType.typeToString(mat.type()));
+        }
+
+        Mat continuous = mat.isContinuous() ? mat : mat.clone();
+        byte[] pixels = new byte[(int) (continuous.total() * continuous.elemSize())];
+        continuous.get(0, 0, pixels);
+        if (continuous != mat) {
+            continuous.release();
+        }
+
+        return of(pixels, mat.rows(), mat.cols(), mat.type());
+    }
+
+    /**
+     * Computes the fingerprint of raw 8-bit pixels laid out like a Mat of the
+     * given size and type. It equals the fingerprint of that Mat.
+     */
+    public static long of(byte[] pixels, int rows, int cols, int type) {
+        long hash = SEED;
+        hash = mix(hash, rows);
+        hash = mix(hash, cols);
+        hash = mix(hash, type);
+        return hash(hash, pixels);
+    }
+
+    private static long hash(long hash, byte[] data) {
+        LongBuffer words = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        while (words.hasRemaining()) {
+            hash = mix(hash, words.get());
+        }
+
+        long tail = 0;
+        for (int i = data.length - data.length % Long.BYTES; i < data.length; i++) {
+            tail = (tail << 8) | (data[i] & 0xFF);
+        }
+        return finish(mix(hash, tail ^ data.length));
+    }
+
+    private static long mix(long hash, long value) {
+        return (hash ^ value) * MULTIPLIER + SEED;
+    }
+
+    private static long finish(long hash) {
+        hash ^= hash >>> 31;
+        hash *= MULTIPLIER;
+        return hash ^ (hash >>> 29);
+    }
+}